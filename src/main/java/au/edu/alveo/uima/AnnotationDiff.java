@@ -0,0 +1,242 @@
+package au.edu.alveo.uima;
+
+import au.edu.alveo.client.TextRestAnnotation;
+import au.edu.alveo.uima.conversions.FallingBackUIMAAlveoConverter;
+import au.edu.alveo.uima.conversions.UIMAToAlveoAnnConverter;
+import au.edu.alveo.uima.conversions.UIMAToAlveoFieldConverter;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.text.AnnotationFS;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Works out which annotations in a CAS are not among the original annotations of an item,
+ * comparing them as Alveo annotations (by type URI, label and span).
+ *
+ * The original annotations are held per Alveo type as parallel arrays of begin and end offsets
+ * and interned label IDs, in annotation index order (begin ascending, end descending). Candidate
+ * annotations, which are normally checked in the same order, are merge-joined against these, so
+ * each check is a short forward scan. A {@link TextRestAnnotation} is only created for annotations
+ * which are new (or for annotations whose converter cannot supply the type and label separately).
+ *
+ * Instances are used for a single CAS and are not thread-safe.
+ */
+class AnnotationDiff {
+	private final UIMAToAlveoAnnConverter converter;
+	private final Map<Type, UIMAToAlveoAnnConverter> convertersByType = new HashMap<Type, UIMAToAlveoAnnConverter>();
+	private final Map<String, Integer> typeIds = new HashMap<String, Integer>();
+	private final Map<String, Integer> labelIds = new HashMap<String, Integer>();
+	private final List<Spans> originals = new ArrayList<Spans>();
+	private boolean sealed = false;
+
+	// the fields of the annotation most recently resolved, to avoid allocating a holder for them
+	private String resolvedType;
+	private String resolvedLabel;
+
+	public AnnotationDiff(UIMAToAlveoAnnConverter converter) {
+		this.converter = converter;
+	}
+
+	/** Add one of the original annotations. All of these must be added before {@link #findNew} is called */
+	public void addOriginal(AnnotationFS ann) throws UIMAToAlveoAnnConverter.NotInitializedException,
+			UIMAToAlveoAnnConverter.InvalidAnnotationTypeException {
+		if (sealed)
+			throw new IllegalStateException("Original annotations must be added before comparing");
+		resolve(ann);
+		Integer typeId = typeIds.get(resolvedType);
+		if (typeId == null) {
+			typeId = originals.size();
+			typeIds.put(resolvedType, typeId);
+			originals.add(new Spans());
+		}
+		originals.get(typeId).add(ann.getBegin(), ann.getEnd(), labelId(resolvedLabel, true));
+	}
+
+	/** Check whether an annotation is new.
+	 *
+	 * Annotations should be checked in annotation index order, or at least in that order for each
+	 * Alveo type; other orders give the same results but are slower.
+	 *
+	 * @param offset The amount to add to the offsets of the returned annotation
+	 * @return the converted annotation if it is not among the originals, or <code>null</code> if it is
+	 */
+	public TextRestAnnotation findNew(AnnotationFS ann, int offset) throws UIMAToAlveoAnnConverter.NotInitializedException,
+			UIMAToAlveoAnnConverter.InvalidAnnotationTypeException {
+		if (!sealed) {
+			for (Spans s : originals)
+				s.sort();
+			sealed = true;
+		}
+		resolve(ann);
+		Integer typeId = typeIds.get(resolvedType);
+		if (typeId != null) {
+			int label = labelId(resolvedLabel, false);
+			if (label >= 0 && originals.get(typeId).contains(ann.getBegin(), ann.getEnd(), label))
+				return null;
+		}
+		return new TextRestAnnotation(resolvedType, resolvedLabel, ann.getBegin() + offset, ann.getEnd() + offset);
+	}
+
+	/** Calculate the fingerprint of an annotation for an {@link UploadFingerprintIndex}
+	 *
+	 * @param itemHash The hash of the item URI
+	 * @param offset The amount to add to the offsets of the annotation to make them relative to the whole item
+	 */
+	public long fingerprint(AnnotationFS ann, long itemHash, int offset) throws UIMAToAlveoAnnConverter.NotInitializedException,
+			UIMAToAlveoAnnConverter.InvalidAnnotationTypeException {
+		resolve(ann);
+		return UploadFingerprintIndex.fingerprint(itemHash, resolvedType, resolvedLabel,
+				ann.getBegin() + offset, ann.getEnd() + offset);
+	}
+
+	private void resolve(AnnotationFS ann) throws UIMAToAlveoAnnConverter.NotInitializedException,
+			UIMAToAlveoAnnConverter.InvalidAnnotationTypeException {
+		UIMAToAlveoAnnConverter conv = convertersByType.get(ann.getType());
+		if (conv == null) {
+			conv = converter;
+			if (converter instanceof FallingBackUIMAAlveoConverter)
+				conv = ((FallingBackUIMAAlveoConverter) converter).getConverterFor(ann.getType().getName());
+			convertersByType.put(ann.getType(), conv);
+		}
+		if (conv instanceof UIMAToAlveoFieldConverter) {
+			UIMAToAlveoFieldConverter fieldConv = (UIMAToAlveoFieldConverter) conv;
+			resolvedType = fieldConv.getAlveoType(ann);
+			resolvedLabel = fieldConv.getAlveoLabel(ann);
+		} else {
+			TextRestAnnotation converted = conv.convertToAlveo(ann);
+			resolvedType = converted.getType();
+			resolvedLabel = converted.getLabel();
+		}
+	}
+
+	/** Get the ID for a label, or -1 if it is not known and <code>create</code> is false */
+	private int labelId(String label, boolean create) {
+		label = AnnotationKeys.normalizeLabel(label);
+		Integer id = labelIds.get(label);
+		if (id == null) {
+			if (!create)
+				return -1;
+			id = labelIds.size();
+			labelIds.put(label, id);
+		}
+		return id;
+	}
+
+	/** The spans and labels of the original annotations of a single Alveo type */
+	private static class Spans {
+		private int[] begins = new int[16];
+		private int[] ends = new int[16];
+		private int[] labels = new int[16];
+		private int size = 0;
+		/** The position of the first span not before the most recently checked one */
+		private int cursor = 0;
+		private int lastBegin = Integer.MIN_VALUE;
+		private int lastEnd = Integer.MAX_VALUE;
+
+		void add(int begin, int end, int label) {
+			if (size == begins.length) {
+				int newLength = size * 2;
+				begins = Arrays.copyOf(begins, newLength);
+				ends = Arrays.copyOf(ends, newLength);
+				labels = Arrays.copyOf(labels, newLength);
+			}
+			begins[size] = begin;
+			ends[size] = end;
+			labels[size] = label;
+			size++;
+		}
+
+		/** Sort into index order, if the spans were not added in that order */
+		void sort() {
+			for (int i = 1; i < size; i++) {
+				if (compare(begins[i - 1], ends[i - 1], begins[i], ends[i]) > 0) {
+					sortRange(0, size);
+					return;
+				}
+			}
+		}
+
+		boolean contains(int begin, int end, int label) {
+			if (compare(begin, end, lastBegin, lastEnd) < 0)
+				cursor = lowerBound(begin, end); // out of order, so the cursor may be past the span
+			lastBegin = begin;
+			lastEnd = end;
+			while (cursor < size && compare(begins[cursor], ends[cursor], begin, end) < 0)
+				cursor++;
+			for (int i = cursor; i < size && begins[i] == begin && ends[i] == end; i++) {
+				if (labels[i] == label)
+					return true;
+			}
+			return false;
+		}
+
+		private int lowerBound(int begin, int end) {
+			int lo = 0;
+			int hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (compare(begins[mid], ends[mid], begin, end) < 0)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+
+		/** Compare spans in index order: by begin ascending, then by end descending */
+		private static int compare(int begin1, int end1, int begin2, int end2) {
+			if (begin1 != begin2)
+				return begin1 < begin2 ? -1 : 1;
+			if (end1 != end2)
+				return end1 > end2 ? -1 : 1;
+			return 0;
+		}
+
+		private void sortRange(int from, int to) {
+			// insertion sort for short ranges, otherwise merge sort via a temporary copy
+			if (to - from < 16) {
+				for (int i = from + 1; i < to; i++) {
+					for (int j = i; j > from && compare(begins[j - 1], ends[j - 1], begins[j], ends[j]) > 0; j--)
+						swap(j - 1, j);
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			sortRange(from, mid);
+			sortRange(mid, to);
+			int[] b = Arrays.copyOfRange(begins, from, to);
+			int[] e = Arrays.copyOfRange(ends, from, to);
+			int[] l = Arrays.copyOfRange(labels, from, to);
+			int i = 0;
+			int j = mid - from;
+			int n = to - from;
+			for (int k = from; k < to; k++) {
+				if (j >= n || (i < mid - from && compare(b[i], e[i], b[j], e[j]) <= 0)) {
+					begins[k] = b[i];
+					ends[k] = e[i];
+					labels[k] = l[i++];
+				} else {
+					begins[k] = b[j];
+					ends[k] = e[j];
+					labels[k] = l[j++];
+				}
+			}
+		}
+
+		private void swap(int i, int j) {
+			int t = begins[i];
+			begins[i] = begins[j];
+			begins[j] = t;
+			t = ends[i];
+			ends[i] = ends[j];
+			ends[j] = t;
+			t = labels[i];
+			labels[i] = labels[j];
+			labels[j] = t;
+		}
+	}
+}
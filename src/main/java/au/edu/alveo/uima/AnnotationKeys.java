@@ -0,0 +1,36 @@
+package au.edu.alveo.uima;
+
+import au.edu.alveo.client.entity.TextAnnotation;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Identifies Alveo annotations by type URI, label and span, so that annotations converted from
+ * UIMA can be matched against those the server returns.
+ *
+ * A missing label and an empty label are treated as the same, since which of them the server
+ * returns for an annotation uploaded with either one depends on the server.
+ */
+public class AnnotationKeys {
+	private AnnotationKeys() {
+	}
+
+	/** Normalize a label for comparison, treating <code>null</code> as the empty label */
+	public static String normalizeLabel(String label) {
+		return label == null ? "" : label;
+	}
+
+	public static String keyOf(TextAnnotation ann) {
+		return ann.getType() + '\t' + normalizeLabel(ann.getLabel()) + '\t' + ann.getStartOffset() + '\t'
+				+ ann.getEndOffset();
+	}
+
+	public static Set<String> keysOf(List<? extends TextAnnotation> anns) {
+		Set<String> keys = new HashSet<String>(anns.size() * 2);
+		for (TextAnnotation ann : anns)
+			keys.add(keyOf(ann));
+		return keys;
+	}
+}
@@ -0,0 +1,105 @@
+package au.edu.alveo.uima;
+
+import au.edu.alveo.uima.conversions.TypeSystemCache;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides which Alveo annotations should be converted into UIMA annotations, on the basis of
+ * lists of annotation types to include and exclude.
+ *
+ * Each entry in the lists is either an Alveo annotation type URI (recognised by containing
+ * <code>://</code>), which matches annotations with exactly that type URI, or a UIMA type name,
+ * which matches annotations converted to that type or any of its subtypes. An annotation is
+ * accepted if the include list is empty or it matches an entry in the include list, and it
+ * does not match any entry in the exclude list. UIMA type names which are not in the type system
+ * match nothing, so if none of the entries in the include list can be matched, nothing is accepted.
+ */
+class AnnotationTypeFilter {
+	private static final Logger LOG = LoggerFactory.getLogger(AnnotationTypeFilter.class);
+
+	private final Set<String> includeUris = new HashSet<String>();
+	private final Set<String> excludeUris = new HashSet<String>();
+	private final List<String> includeTypeNames = new ArrayList<String>();
+	private final List<String> excludeTypeNames = new ArrayList<String>();
+
+	private final TypeSystemCache<ResolvedTypes> resolvedTypes = new TypeSystemCache<ResolvedTypes>() {
+		@Override
+		protected ResolvedTypes compile(TypeSystem ts) {
+			Set<Type> include = resolveTypes(ts, includeTypeNames);
+			if (includeUris.isEmpty() && !includeTypeNames.isEmpty() && include.isEmpty())
+				LOG.error("None of the UIMA types {} to include are in the type system; no annotations will be included",
+						includeTypeNames);
+			return new ResolvedTypes(include, resolveTypes(ts, excludeTypeNames));
+		}
+	};
+
+	public AnnotationTypeFilter(Collection<String> includes, Collection<String> excludes) {
+		if (includes != null)
+			split(includes, includeUris, includeTypeNames);
+		if (excludes != null)
+			split(excludes, excludeUris, excludeTypeNames);
+	}
+
+	private static void split(Collection<String> entries, Set<String> uris, List<String> typeNames) {
+		for (String entry : entries) {
+			if (entry.contains("://"))
+				uris.add(entry);
+			else
+				typeNames.add(entry);
+		}
+	}
+
+	/** Returns whether the filter accepts every annotation, so it needn't be consulted */
+	public boolean acceptsAll() {
+		return includeUris.isEmpty() && includeTypeNames.isEmpty()
+				&& excludeUris.isEmpty() && excludeTypeNames.isEmpty();
+	}
+
+	/** Returns whether an annotation should be converted.
+	 *
+	 * @param annTypeUri The Alveo type URI of the annotation
+	 * @param type The UIMA type the annotation would be converted to
+	 * @param ts The type system the UIMA type belongs to
+	 */
+	public boolean accepts(String annTypeUri, Type type, TypeSystem ts) {
+		ResolvedTypes types = resolvedTypes.get(ts);
+		boolean included = (includeUris.isEmpty() && includeTypeNames.isEmpty())
+				|| includeUris.contains(annTypeUri) || types.include.contains(type);
+		return included && !excludeUris.contains(annTypeUri) && !types.exclude.contains(type);
+	}
+
+	private static Set<Type> resolveTypes(TypeSystem ts, List<String> typeNames) {
+		Set<Type> types = new HashSet<Type>();
+		for (String tn : typeNames) {
+			Type t = ts.getType(tn);
+			if (t == null) {
+				LOG.warn("Annotation type filter names unknown UIMA type {}", tn);
+				continue;
+			}
+			types.add(t);
+			types.addAll(ts.getProperlySubsumedTypes(t));
+		}
+		return Collections.unmodifiableSet(types);
+	}
+
+	/** The UIMA types named by the filter, and their subtypes, in a particular type system */
+	private static class ResolvedTypes {
+		final Set<Type> include;
+		final Set<Type> exclude;
+
+		ResolvedTypes(Set<Type> include, Set<Type> exclude) {
+			this.include = include;
+			this.exclude = exclude;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package au.edu.alveo.uima;
+
+import au.edu.alveo.client.RestClient;
+import au.edu.alveo.client.entity.Item;
+import au.edu.alveo.uima.metrics.Histogram;
+import au.edu.alveo.uima.metrics.MetricsRegistry;
+import org.openrdf.OpenRDFException;
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQuery;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.sparql.SPARQLRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fetches the text annotations for many items at once, using one SPARQL query per corpus
+ * rather than one REST request per item.
+ *
+ * Items are identified in the triple store by a different URI to the one used by the REST API,
+ * but both end with the item identifier, and the REST URI has the corpus name as the segment
+ * before that (for example <code>.../catalog/cooee/1-001</code>), so items are grouped by
+ * corpus, the query is restricted to the triple store URIs constructed from the corpus names and
+ * identifiers, and the results are matched to the items on their identifiers.
+ *
+ * Annotations without a label are given a <code>null</code> label, and annotations with several
+ * labels are given one of them, so each annotation appears once.
+ *
+ * Only items for which the query returns at least one annotation are included in the results. An
+ * item with no results may have no annotations, or may have a triple store URI which doesn't follow
+ * the usual pattern, so it is left for its annotations to be fetched individually.
+ */
+class BulkAnnotationFetcher {
+	private static final Logger LOG = LoggerFactory.getLogger(BulkAnnotationFetcher.class);
+	private static final Histogram BULK_FETCH_TIME = MetricsRegistry.timer("sparql.bulkAnnotationFetch");
+
+	private static final String QUERY_TEMPLATE = "PREFIX dada: <http://purl.org/dada/schema/0.2#>\n"
+			+ "SELECT ?item ?ann ?type ?start ?end (SAMPLE(?anyLabel) AS ?label) WHERE {\n"
+			+ "  VALUES ?item { %s }\n"
+			+ "  ?annColl dada:annotates ?item .\n"
+			+ "  ?ann dada:partof ?annColl ; dada:type ?type ; dada:targets ?loc .\n"
+			+ "  ?loc a dada:UTF8Region ; dada:start ?start ; dada:end ?end .\n"
+			+ "  OPTIONAL { ?ann dada:label ?anyLabel }\n"
+			+ "}\n"
+			// one row per annotation, even if it has several labels
+			+ "GROUP BY ?item ?ann ?type ?start ?end";
+
+	/** The URI of an item in the triple store, from its corpus name and identifier */
+	private static final String ITEM_URI_TEMPLATE = "http://ns.ausnc.org.au/corpora/%s/items/%s";
+
+	private final RestClient restClient;
+
+	public BulkAnnotationFetcher(RestClient restClient) {
+		this.restClient = restClient;
+	}
+
+	/** Fetch the annotations of each of the supplied items.
+	 *
+	 * @return A map from the URI of each item to its annotations. Items which didn't match any
+	 * 		annotations, or whose corpus could not be determined from their URIs or could not be
+	 * 		queried, are not included, so their annotations should be fetched individually
+	 */
+	public Map<String, List<FetchedItem.FetchedAnnotation>> fetch(Collection<? extends Item> items) {
+		// corpus name -> item identifier -> item URI
+		Map<String, Map<String, String>> byCorpus = new LinkedHashMap<String, Map<String, String>>();
+		for (Item item : items) {
+			String[] segments = item.getUri().split("/");
+			if (segments.length < 2) {
+				LOG.warn("Can't determine the corpus of item {}", item.getUri());
+				continue;
+			}
+			String corpus = segments[segments.length - 2];
+			Map<String, String> idsToUris = byCorpus.get(corpus);
+			if (idsToUris == null) {
+				idsToUris = new HashMap<String, String>();
+				byCorpus.put(corpus, idsToUris);
+			}
+			idsToUris.put(segments[segments.length - 1], item.getUri());
+		}
+		Map<String, List<FetchedItem.FetchedAnnotation>> annsByUri = new HashMap<String, List<FetchedItem.FetchedAnnotation>>();
+		for (Map.Entry<String, Map<String, String>> entry : byCorpus.entrySet()) {
+			try {
+				annsByUri.putAll(fetchForCorpus(entry.getKey(), entry.getValue()));
+			} catch (OpenRDFException e) {
+				LOG.warn("Bulk annotation query failed for {} items in corpus {}; falling back to fetching " +
+						"them individually: {}", new Object[] {entry.getValue().size(), entry.getKey(), e.getMessage()});
+			} catch (NumberFormatException e) {
+				LOG.warn("Bulk annotation query returned invalid offsets for corpus {}; falling back to fetching " +
+						"items individually: {}", entry.getKey(), e.getMessage());
+			}
+		}
+		return annsByUri;
+	}
+
+	private Map<String, List<FetchedItem.FetchedAnnotation>> fetchForCorpus(String corpus, Map<String, String> idsToUris)
+			throws OpenRDFException {
+		long startTime = System.nanoTime();
+		Map<String, List<FetchedItem.FetchedAnnotation>> annsByUri = new HashMap<String, List<FetchedItem.FetchedAnnotation>>();
+		StringBuilder itemUris = new StringBuilder();
+		for (String id : idsToUris.keySet()) {
+			String itemUri = String.format(ITEM_URI_TEMPLATE, encodeSegment(corpus), encodeSegment(id));
+			itemUris.append('<').append(itemUri).append("> ");
+		}
+		SPARQLRepository repo = restClient.getSPARQLRepository(corpus);
+		RepositoryConnection conn = repo.getConnection();
+		try {
+			TupleQuery query = conn.prepareTupleQuery(QueryLanguage.SPARQL, String.format(QUERY_TEMPLATE, itemUris));
+			TupleQueryResult result = query.evaluate();
+			try {
+				// stream the results, routing each annotation to its item
+				while (result.hasNext()) {
+					BindingSet bs = result.next();
+					String item = bs.getValue("item").stringValue();
+					String uri = idsToUris.get(item.substring(item.lastIndexOf('/') + 1));
+					if (uri == null)
+						continue;
+					List<FetchedItem.FetchedAnnotation> anns = annsByUri.get(uri);
+					if (anns == null) {
+						anns = new ArrayList<FetchedItem.FetchedAnnotation>();
+						annsByUri.put(uri, anns);
+					}
+					Value label = bs.getValue("label");
+					anns.add(new FetchedItem.FetchedAnnotation(bs.getValue("type").stringValue(),
+							label == null ? null : label.stringValue(),
+							Integer.parseInt(bs.getValue("start").stringValue()),
+							Integer.parseInt(bs.getValue("end").stringValue())));
+				}
+			} finally {
+				result.close();
+			}
+		} finally {
+			conn.close();
+		}
+		BULK_FETCH_TIME.updateNanos(System.nanoTime() - startTime);
+		return annsByUri;
+	}
+
+	/** Percent-encode the characters of a URI path segment which can't appear in a SPARQL IRI reference */
+	private static String encodeSegment(String segment) {
+		StringBuilder sb = new StringBuilder(segment.length());
+		for (int i = 0; i < segment.length(); i++) {
+			char c = segment.charAt(i);
+			if (c <= ' ' || "<>\"{}|^`\\/".indexOf(c) >= 0)
+				sb.append(String.format("%%%02X", (int) c));
+			else
+				sb.append(c);
+		}
+		return sb.toString();
+	}
+}
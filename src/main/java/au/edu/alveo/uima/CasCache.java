@@ -0,0 +1,201 @@
+package au.edu.alveo.uima;
+
+import au.edu.alveo.uima.metrics.Histogram;
+import au.edu.alveo.uima.metrics.MetricsRegistry;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.impl.Serialization;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.util.TypeSystemUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A persistent on-disk cache of fully-populated CASes, so that later runs of a pipeline can skip
+ * both retrieving items from the server and converting them.
+ *
+ * CASes are stored in UIMA's compressed binary form (form 6), which is much faster to read and
+ * smaller than XMI. Entries are keyed on the item URI and a fingerprint of the type system and of
+ * any reader settings which affect the CAS contents (see {@link #fingerprint(TypeSystem, String)}),
+ * so changing either of those simply results in cache misses. Entries with the same fingerprint are
+ * kept in a subdirectory, along with a single copy of the type system they were serialized with.
+ *
+ * Entries are never evicted; delete the cache directory to clear it.
+ */
+class CasCache {
+	private static final Logger LOG = LoggerFactory.getLogger(CasCache.class);
+	private static final Histogram READ_TIME = MetricsRegistry.timer("casCache.read");
+	private static final Histogram WRITE_TIME = MetricsRegistry.timer("casCache.write");
+	private static final String SUFFIX = ".cas";
+	private static final String TYPE_SYSTEM_FILE = "typesystem.xml";
+
+	private final File directory;
+
+	public CasCache(File directory) throws IOException {
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create cache directory " + directory);
+	}
+
+	/** Calculate the fingerprint which identifies CASes compatible with the supplied type system
+	 * and settings. This is somewhat expensive, so callers should reuse the result.
+	 *
+	 * @param settings A description of any other settings which affect the contents of the CAS
+	 */
+	public static String fingerprint(TypeSystem ts, String settings) {
+		List<String> typeDescs = new ArrayList<String>();
+		Iterator<Type> types = ts.getTypeIterator();
+		while (types.hasNext()) {
+			Type type = types.next();
+			Type parent = ts.getParent(type);
+			StringBuilder sb = new StringBuilder(type.getName());
+			sb.append('<').append(parent == null ? "" : parent.getName());
+			for (Feature f : type.getFeatures())
+				sb.append(';').append(f.getShortName()).append(':').append(f.getRange().getName());
+			typeDescs.add(sb.toString());
+		}
+		Collections.sort(typeDescs); // the iteration order depends on the order types were declared
+		typeDescs.add(settings);
+		return sha1Hex(typeDescs);
+	}
+
+	/** Returns whether there is an entry for the item with the supplied fingerprint */
+	public boolean contains(String itemUri, String fingerprint) {
+		return fileFor(itemUri, fingerprint).isFile();
+	}
+
+	/** Populate a CAS from the cache.
+	 *
+	 * @param cas An empty CAS, whose type system must match the fingerprint
+	 * @return true if the CAS was populated; false if there was no usable entry, in which case
+	 * 		the CAS has been reset
+	 */
+	public boolean read(String itemUri, String fingerprint, CAS cas) {
+		File file = fileFor(itemUri, fingerprint);
+		if (!file.isFile())
+			return false;
+		long start = System.nanoTime();
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(file));
+			try {
+				// the type system is identical, so no type mapping is needed
+				Serialization.deserializeCAS(cas, in, null, null);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			discard(file, itemUri, cas, e);
+			return false;
+		} catch (ResourceInitializationException e) {
+			discard(file, itemUri, cas, e);
+			return false;
+		}
+		READ_TIME.updateNanos(System.nanoTime() - start);
+		return true;
+	}
+
+	private void discard(File file, String itemUri, CAS cas, Exception e) {
+		LOG.warn("Discarding unreadable CAS cache entry {} for {}: {}", new Object[] {file, itemUri, e.getMessage()});
+		cas.reset();
+		file.delete();
+	}
+
+	/** Store a CAS in the cache, replacing any existing entry for the item with the same fingerprint */
+	public void write(String itemUri, String fingerprint, CAS cas) {
+		long start = System.nanoTime();
+		File file = fileFor(itemUri, fingerprint);
+		try {
+			File dir = file.getParentFile();
+			writeTypeSystemIfAbsent(dir, cas.getTypeSystem());
+			File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+			try {
+				Serialization.serializeWithCompression(cas, out, cas.getTypeSystem());
+			} finally {
+				out.close();
+			}
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				tmp.delete(); // only still there if the move failed
+			}
+		} catch (IOException e) {
+			LOG.warn("Unable to write CAS cache entry for {}: {}", itemUri, e.getMessage());
+			return;
+		} catch (ResourceInitializationException e) {
+			LOG.warn("Unable to write CAS cache entry for {}: {}", itemUri, e.getMessage());
+			return;
+		} catch (SAXException e) {
+			LOG.warn("Unable to write the type system for CAS cache entry {}: {}", itemUri, e.getMessage());
+			return;
+		}
+		WRITE_TIME.updateNanos(System.nanoTime() - start);
+	}
+
+	/** Store the type system once for each fingerprint, so the entries can be read without the original pipeline */
+	private synchronized void writeTypeSystemIfAbsent(File dir, TypeSystem ts) throws IOException, SAXException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Unable to create cache directory " + dir);
+		File tsFile = new File(dir, TYPE_SYSTEM_FILE);
+		if (tsFile.exists())
+			return;
+		File tmp = File.createTempFile(TYPE_SYSTEM_FILE, ".tmp", dir); // other processes may be writing it too
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+		try {
+			TypeSystemUtil.typeSystem2TypeSystemDescription(ts).toXML(out);
+		} finally {
+			out.close();
+		}
+		try {
+			Files.move(tmp.toPath(), tsFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	private File fileFor(String itemUri, String fingerprint) {
+		return new File(new File(directory, fingerprint), sha1Hex(Collections.singletonList(itemUri)) + SUFFIX);
+	}
+
+	private static String sha1Hex(List<String> parts) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			for (String part : parts) {
+				md.update(part.getBytes("UTF-8"));
+				md.update((byte) '\n');
+			}
+			byte[] digest = md.digest();
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest)
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
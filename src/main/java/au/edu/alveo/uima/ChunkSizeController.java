@@ -0,0 +1,69 @@
+package au.edu.alveo.uima;
+
+import au.edu.alveo.uima.metrics.Histogram;
+import au.edu.alveo.uima.metrics.Meter;
+import au.edu.alveo.uima.metrics.MetricsRegistry;
+
+/**
+ * Chooses how many annotations to send in each upload request, based on how long recent
+ * requests have taken.
+ *
+ * The chunk size grows gradually while requests for full-sized chunks complete within the target
+ * latency, shrinks in proportion when they take longer, and is cut sharply when a request fails,
+ * so that a slow or overloaded server gets smaller requests. A single instance is shared by all
+ * of the upload threads of a component.
+ */
+class ChunkSizeController {
+	private static final Histogram CHUNK_SIZE = MetricsRegistry.histogram("uploader.chunkSize", "annotations");
+	private static final Meter GROWN = MetricsRegistry.meter("uploader.chunkSize.grown");
+	private static final Meter SHRUNK_SLOW = MetricsRegistry.meter("uploader.chunkSize.shrunkSlow");
+	private static final Meter SHRUNK_FAILURE = MetricsRegistry.meter("uploader.chunkSize.shrunkFailure");
+
+	/** The factor by which the chunk size grows after a fast request */
+	private static final double GROWTH = 1.25;
+
+	private final int minSize;
+	private final int maxSize;
+	private final long targetNanos;
+	private double size;
+
+	public ChunkSizeController(int minSize, int maxSize, int initialSize, long targetLatencyMillis) {
+		if (minSize < 1 || maxSize < minSize)
+			throw new IllegalArgumentException("Invalid chunk size range " + minSize + "-" + maxSize);
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.targetNanos = targetLatencyMillis * 1000000L;
+		this.size = clamp(initialSize);
+	}
+
+	/** The number of annotations to send in the next request */
+	public synchronized int getChunkSize() {
+		return (int) size;
+	}
+
+	/** Record that a chunk was stored successfully */
+	public synchronized void succeeded(int chunkSize, long nanos) {
+		CHUNK_SIZE.update(chunkSize);
+		if (nanos > targetNanos) {
+			size = clamp(size * targetNanos / nanos);
+			SHRUNK_SLOW.mark();
+		} else if (chunkSize >= (int) size && size < maxSize) {
+			// only full chunks tell us anything about whether larger ones would be fast enough
+			size = clamp(Math.max(size * GROWTH, size + 1));
+			GROWN.mark();
+		}
+	}
+
+	/** Record that a request failed, probably because the chunk was too large for the server to handle in time
+	 *
+	 * @param timedOut whether the request timed out, in which case the chunk size is cut more sharply
+	 */
+	public synchronized void failed(boolean timedOut) {
+		size = clamp(size / (timedOut ? 4 : 2));
+		SHRUNK_FAILURE.mark();
+	}
+
+	private double clamp(double s) {
+		return Math.max(minSize, Math.min(maxSize, s));
+	}
+}
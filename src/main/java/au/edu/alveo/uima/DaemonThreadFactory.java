@@ -0,0 +1,25 @@
+package au.edu.alveo.uima;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates numbered daemon threads for background work, so that an unfinished pool never
+ * keeps the JVM running after the pipeline has finished.
+ */
+class DaemonThreadFactory implements ThreadFactory {
+	private final String namePrefix;
+	private final AtomicInteger counter = new AtomicInteger();
+
+	/** @param namePrefix The start of each thread's name, which is followed by its number */
+	DaemonThreadFactory(String namePrefix) {
+		this.namePrefix = namePrefix;
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, namePrefix + counter.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}
+}
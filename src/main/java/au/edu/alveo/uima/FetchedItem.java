@@ -0,0 +1,174 @@
+package au.edu.alveo.uima;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory snapshot of everything about an Alveo item which is needed to populate a CAS.
+ *
+ * Obtaining these values from an {@link au.edu.alveo.client.entity.Item} may require
+ * requests to the server, so separating the fetching from the CAS population means that the
+ * network-bound work can be done ahead of time (possibly on another thread) and the
+ * CAS population only needs to copy data which is already available.
+ */
+class FetchedItem {
+	private final String uri;
+	private final String primaryText;
+	private final Map<String, String> metadata;
+	private final List<FetchedAnnotation> annotations;
+	private final List<FetchedDocument> documents;
+	private final boolean fetched;
+
+	/**
+	 * @param uri The URI of the item on the server
+	 * @param primaryText The primary text of the item
+	 * @param metadata The item metadata, keyed by property URI
+	 * @param annotations The text annotations of the item, or <code>null</code> if they were not fetched
+	 * @param documents The raw source documents of the item, or <code>null</code> if they were not fetched
+	 */
+	public FetchedItem(String uri, String primaryText, Map<String, String> metadata,
+			List<FetchedAnnotation> annotations, List<FetchedDocument> documents) {
+		this(uri, primaryText, metadata, annotations, documents, true);
+	}
+
+	private FetchedItem(String uri, String primaryText, Map<String, String> metadata,
+			List<FetchedAnnotation> annotations, List<FetchedDocument> documents, boolean fetched) {
+		this.uri = uri;
+		this.primaryText = primaryText;
+		this.metadata = metadata;
+		this.annotations = annotations;
+		this.documents = documents;
+		this.fetched = fetched;
+	}
+
+	/** Create a placeholder for an item which was deliberately not fetched, because its CAS
+	 * can be obtained another way (such as from a {@link CasCache})
+	 */
+	public static FetchedItem unfetched(String uri) {
+		return new FetchedItem(uri, null, Collections.<String, String>emptyMap(), null, null, false);
+	}
+
+	/** Returns false if this is a placeholder created by {@link #unfetched(String)} */
+	public boolean isFetched() {
+		return fetched;
+	}
+
+	public String getUri() {
+		return uri;
+	}
+
+	public String getPrimaryText() {
+		return primaryText;
+	}
+
+	public Map<String, String> getMetadata() {
+		return metadata;
+	}
+
+	/** Returns whether annotations were fetched for this item */
+	public boolean hasAnnotations() {
+		return annotations != null;
+	}
+
+	public List<FetchedAnnotation> getAnnotations() {
+		return annotations;
+	}
+
+	/** Returns whether the raw source documents were fetched for this item */
+	public boolean hasDocuments() {
+		return documents != null;
+	}
+
+	public List<FetchedDocument> getDocuments() {
+		return documents != null ? documents : Collections.<FetchedDocument>emptyList();
+	}
+
+	/** A text annotation belonging to an item */
+	static class FetchedAnnotation {
+		private final String type;
+		private final String label;
+		private final int start;
+		private final int end;
+
+		public FetchedAnnotation(String type, String label, int start, int end) {
+			this.type = type;
+			this.label = label;
+			this.start = start;
+			this.end = end;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		public int getStart() {
+			return start;
+		}
+
+		public int getEnd() {
+			return end;
+		}
+	}
+
+	/** A raw source document belonging to an item */
+	static class FetchedDocument {
+		/** How much of the document content was retrieved */
+		enum Content {
+			/** The raw text was retrieved and is available from {@link FetchedDocument#getRawText()} */
+			INLINE,
+			/** The document was too large to retrieve, so it should be referred to by its URL */
+			BY_REFERENCE,
+			/** The document was not selected, so nothing but its type and URL was retrieved */
+			SKIPPED
+		}
+
+		private final String docType;
+		private final String dataUrl;
+		private final String rawText;
+		private final Content content;
+		private final long maxBytes;
+
+		/**
+		 * @param maxBytes The size limit which was applied when deciding whether to retrieve the
+		 *                 document, or zero if there was none
+		 */
+		public FetchedDocument(String docType, String dataUrl, String rawText, long maxBytes) {
+			this(docType, dataUrl, rawText, Content.INLINE, maxBytes);
+		}
+
+		public FetchedDocument(String docType, String dataUrl, String rawText, Content content, long maxBytes) {
+			this.docType = docType;
+			this.dataUrl = dataUrl;
+			this.rawText = rawText;
+			this.content = content;
+			this.maxBytes = maxBytes;
+		}
+
+		public String getDocType() {
+			return docType;
+		}
+
+		public String getDataUrl() {
+			return dataUrl;
+		}
+
+		/** The raw text of the document, which is <code>null</code> unless the content is {@link Content#INLINE} */
+		public String getRawText() {
+			return rawText;
+		}
+
+		public Content getContent() {
+			return content;
+		}
+
+		/** The size limit which was applied when deciding whether to retrieve the document, or zero if there was none */
+		public long getMaxBytes() {
+			return maxBytes;
+		}
+	}
+}
@@ -1,23 +1,28 @@
 package au.edu.alveo.uima;
 
-import com.google.common.collect.Lists;
 import au.edu.alveo.uima.conversions.FallingBackUIMAAlveoConverter;
+import au.edu.alveo.uima.conversions.TypeSystemCache;
 import au.edu.alveo.uima.conversions.UIMAToAlveoAnnConverter;
+import au.edu.alveo.uima.metrics.Histogram;
+import au.edu.alveo.uima.metrics.Meter;
+import au.edu.alveo.uima.metrics.MetricsRegistry;
 import au.edu.alveo.uima.types.AlveoItemSource;
-import au.edu.alveo.client.RestClient;
+import au.edu.alveo.uima.types.ItemWindow;
 import au.edu.alveo.client.TextRestAnnotation;
+import au.edu.alveo.client.UnsupportedLDSchemaException;
 import au.edu.alveo.client.entity.EntityNotFoundException;
 import au.edu.alveo.client.entity.InvalidAnnotationException;
 import au.edu.alveo.client.entity.InvalidServerAddressException;
 import au.edu.alveo.client.entity.Item;
+import au.edu.alveo.client.entity.TextAnnotation;
 import au.edu.alveo.client.entity.UnauthorizedAPIKeyException;
 import au.edu.alveo.client.entity.UploadIntegrityException;
 import org.apache.uima.UimaContext;
 import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.cas.ArrayFS;
 import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.CASException;
 import org.apache.uima.cas.FSIterator;
-import org.apache.uima.cas.Feature;
 import org.apache.uima.cas.Type;
 import org.apache.uima.cas.TypeSystem;
 import org.apache.uima.cas.text.AnnotationFS;
@@ -29,10 +34,18 @@ import org.apache.uima.resource.ResourceInitializationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 /**
@@ -41,10 +54,27 @@ import java.util.Set;
  * The UIMA annotations undergo a lossy conversion process to create Alveo annotations,
  * and the annotations are then uploaded to the server if equivalent annotations
  * (with the same type, label and span) are not found on the item already
+ *
+ * Several instances can run at once, such as the replicas in a multi-threaded CPE. Instances
+ * using the same server and API key share a client, and instances using the same upload index
+ * directory share the index.
  */
 @OperationalProperties(modifiesCas = false)
 public class ItemAnnotationUploader extends CasConsumer_ImplBase {
 	private static final Logger LOG = LoggerFactory.getLogger(ItemAnnotationUploader.class);
+	private static final Histogram ITEM_FETCH_TIME = MetricsRegistry.timer("rest.itemFetch");
+	private static final Histogram STORE_TIME = MetricsRegistry.timer("rest.storeNewAnnotations");
+	private static final Histogram CONVERSION_TIME = MetricsRegistry.timer("uploader.conversion");
+	private static final Histogram DIFF_SIZE = MetricsRegistry.histogram("uploader.diffSize", "annotations");
+	private static final Meter ALREADY_UPLOADED = MetricsRegistry.meter("uploader.alreadyUploadedItems");
+	private static final Meter CHUNK_RETRIES = MetricsRegistry.meter("uploader.chunkRetries");
+	private static final Meter CHUNK_SPLITS = MetricsRegistry.meter("uploader.chunkSplits");
+
+	/** Used to size the Bloom filter of the upload index, in addition to the entries from earlier runs */
+	private static final int EXPECTED_NEW_INDEX_ENTRIES = 1000000;
+
+	/** The number of annotations in the first upload request, before any have been timed */
+	private static final int INITIAL_CHUNK_SIZE = 200;
 
 	public static final String PARAM_ALVEO_BASE_URL = "alveoBaseUrl";
 	public static final String PARAM_ALVEO_API_KEY = "alveoApiKey";
@@ -52,6 +82,25 @@ public class ItemAnnotationUploader extends CasConsumer_ImplBase {
 	public static final String PARAM_ANNTYPE_FEATURE_NAMES = "annTypeFeatureNames";
 	public static final String PARAM_UPLOADABLE_UIMA_TYPE_NAMES = "uploadableUimaTypeNames";
 	public static final String PARAM_ANNOTATION_CONVERTERS = "annotationConverters";
+	public static final String PARAM_ITEM_CACHE_DIR = "itemCacheDir";
+	public static final String PARAM_ITEM_CACHE_MAX_MB = "itemCacheMaxMB";
+	public static final String PARAM_DIFF_AGAINST_READER_ANNOTATIONS = "diffAgainstReaderAnnotations";
+	public static final String PARAM_MAX_CONCURRENT_REQUESTS = "maxConcurrentRequests";
+	public static final String PARAM_UPLOAD_THREADS = "uploadThreads";
+	public static final String PARAM_MAX_PENDING_UPLOADS = "maxPendingUploads";
+	public static final String PARAM_BATCH_MAX_ITEMS = "batchMaxItems";
+	public static final String PARAM_BATCH_MAX_ANNOTATIONS = "batchMaxAnnotations";
+	public static final String PARAM_BATCH_MAX_BYTES = "batchMaxBytes";
+	public static final String PARAM_BATCH_MAX_DELAY_MS = "batchMaxDelayMs";
+	public static final String PARAM_MIN_CHUNK_SIZE = "minChunkSize";
+	public static final String PARAM_MAX_CHUNK_SIZE = "maxChunkSize";
+	public static final String PARAM_TARGET_CHUNK_LATENCY_MS = "targetChunkLatencyMs";
+	public static final String PARAM_MAX_CHUNK_RETRIES = "maxChunkRetries";
+	public static final String PARAM_RETRY_BACKOFF_MS = "retryBackoffMs";
+	public static final String PARAM_UPLOAD_JOURNAL_DIR = "uploadJournalDir";
+	public static final String PARAM_UPLOAD_INDEX_DIR = "uploadIndexDir";
+	public static final String PARAM_METRICS_FILE = "metricsFile";
+	public static final String PARAM_METRICS_INTERVAL_SECS = "metricsIntervalSecs";
 
 	/** The default feature name which, if found, is used to set the type of an annotation */
 	public static final String DEFAULT_ANNTYPE_FEATURE = "au.edu.alveo.uima.types.ItemAnnotation:annType";
@@ -96,23 +145,170 @@ public class ItemAnnotationUploader extends CasConsumer_ImplBase {
 					"All classes named here must implement au.edu.alveo.uima.conversions.UIMAToAlveoAnnConverter")
 	private String[] annotationConverterClasses = new String[] {};
 
-	private RestClient apiClient;
+	@ConfigurationParameter(name = PARAM_ITEM_CACHE_DIR, mandatory = false,
+			description = "If set, a directory containing an item cache shared with the collection reader. " +
+					"Entries for items whose annotations are uploaded are removed, so that the reader does not " +
+					"use stale copies. The cache is never used as the baseline for determining which annotations " +
+					"are new, since it may be out of date with the server")
+	private File itemCacheDir = null;
+
+	@ConfigurationParameter(name = PARAM_ITEM_CACHE_MAX_MB, mandatory = false,
+			description = "Maximum size in megabytes of the item cache. Zero or less means no limit")
+	private int itemCacheMaxMB = 1024;
+
+	@ConfigurationParameter(name = PARAM_DIFF_AGAINST_READER_ANNOTATIONS, mandatory = false,
+			description = "If true, annotations are compared against the original annotations which the collection " +
+					"reader stored in au.edu.alveo.uima.types.AlveoItemSource:annotations, rather than against a " +
+					"fresh copy of the item, so the item is only retrieved from the server when there is something " +
+					"to upload. The reader must not filter out any annotation types which could also be produced by " +
+					"the pipeline, or annotations of those types may be uploaded again. CASes without the original " +
+					"annotations are compared against a fresh copy of the item as usual")
+	private boolean diffAgainstReaderAnnotations = false;
+
+	@ConfigurationParameter(name = PARAM_MAX_CONCURRENT_REQUESTS, mandatory = false,
+			description = "Maximum number of requests made to the server at once, shared by all instances of this " +
+					"component (such as the replicas in a multi-threaded CPE) which use the same server and API key; " +
+					"they also share a single client and its connections. Zero (the default) means no limit. " +
+					"If instances are configured differently, the value of the first one to be initialized is used")
+	private int maxConcurrentRequests = 0;
+
+	@ConfigurationParameter(name = PARAM_UPLOAD_THREADS, mandatory = false,
+			description = "Number of background threads used to upload annotations. If greater than zero, " +
+					"process() only works out which annotations are new and queues them for upload, so the rest of " +
+					"the pipeline can carry on while uploads are in progress; failures are reported when the batch " +
+					"or collection is complete. Items are only recorded by au.edu.alveo.uima.ItemCheckpointWriter " +
+					"once their uploads have succeeded, so a restarted pipeline processes again any item whose " +
+					"upload had not finished. Zero (the default) uploads on the pipeline thread")
+	private int uploadThreads = 0;
+
+	@ConfigurationParameter(name = PARAM_MAX_PENDING_UPLOADS, mandatory = false,
+			description = "Maximum number of items whose uploads can be queued or in progress at once when " +
+					"uploading in the background; process() waits for an upload to finish once this is reached")
+	private int maxPendingUploads = 16;
+
+	@ConfigurationParameter(name = PARAM_BATCH_MAX_ITEMS, mandatory = false,
+			description = "If greater than zero, new annotations are buffered across CASes and uploaded in bursts; " +
+					"a burst is uploaded once this many items have new annotations, or any of the other batch " +
+					"thresholds is reached. Annotations from several windows of the same item are uploaded together, " +
+					"but the server stores annotations per item, so batching does not reduce the number of requests " +
+					"for items which appear only once. Items in a batch are only recorded by " +
+					"au.edu.alveo.uima.ItemCheckpointWriter once the batch has been uploaded. " +
+					"Zero (the default) uploads the annotations for each CAS as it is processed")
+	private int batchMaxItems = 0;
+
+	@ConfigurationParameter(name = PARAM_BATCH_MAX_ANNOTATIONS, mandatory = false,
+			description = "When batching, upload once this many new annotations are buffered (zero for no limit)")
+	private int batchMaxAnnotations = 5000;
+
+	@ConfigurationParameter(name = PARAM_BATCH_MAX_BYTES, mandatory = false,
+			description = "When batching, upload once approximately this many bytes of annotation data are " +
+					"buffered (zero for no limit)")
+	private int batchMaxBytes = 4 * 1024 * 1024;
+
+	@ConfigurationParameter(name = PARAM_BATCH_MAX_DELAY_MS, mandatory = false,
+			description = "When batching, upload once the oldest buffered annotations have been waiting this many " +
+					"milliseconds (zero for no limit). This is only checked as each CAS is processed, so if no " +
+					"CASes arrive the batch waits until the batch of CASes or the collection is complete")
+	private int batchMaxDelayMs = 30000;
+
+	@ConfigurationParameter(name = PARAM_MIN_CHUNK_SIZE, mandatory = false,
+			description = "Minimum number of annotations sent in each upload request")
+	private int minChunkSize = 10;
+
+	@ConfigurationParameter(name = PARAM_MAX_CHUNK_SIZE, mandatory = false,
+			description = "Maximum number of annotations sent in each upload request. The number sent is adjusted " +
+					"between the minimum and this according to how long requests take")
+	private int maxChunkSize = 2000;
+
+	@ConfigurationParameter(name = PARAM_TARGET_CHUNK_LATENCY_MS, mandatory = false,
+			description = "Target time in milliseconds for each upload request. Requests are made larger while " +
+					"they complete in less than this, and smaller when they take longer or fail")
+	private int targetChunkLatencyMs = 5000;
+
+	@ConfigurationParameter(name = PARAM_MAX_CHUNK_RETRIES, mandatory = false,
+			description = "Number of times a failed upload request is retried before its annotations are split " +
+					"into two smaller requests; a single annotation which cannot be uploaded fails the item")
+	private int maxChunkRetries = 3;
+
+	@ConfigurationParameter(name = PARAM_RETRY_BACKOFF_MS, mandatory = false,
+			description = "Base delay in milliseconds before retrying a failed upload request; the delay doubles " +
+					"with each attempt, and is randomized to avoid retrying many requests at once")
+	private int retryBackoffMs = 500;
+
+	@ConfigurationParameter(name = PARAM_UPLOAD_JOURNAL_DIR, mandatory = false,
+			description = "If set, a directory in which the new annotations for each item are recorded as soon as " +
+					"they are found (before they are batched, queued or sent), and marked as committed once the " +
+					"server has accepted all of them. If the pipeline stops part-way through, the uncommitted " +
+					"annotations can be uploaded with au.edu.alveo.uima.utils.ReplayUploadJournal without running " +
+					"the pipeline again")
+	private File uploadJournalDir = null;
+
+	@ConfigurationParameter(name = PARAM_UPLOAD_INDEX_DIR, mandatory = false,
+			description = "If set, a directory holding a persistent index of the annotations which have been uploaded " +
+					"(or found to be present already) for each item. Items whose annotations are all in the index are " +
+					"skipped without retrieving them from the server, which makes re-running a pipeline cheap. " +
+					"Annotations deleted from the server by other means will not be uploaded again while the index " +
+					"is in use; delete the directory to clear it")
+	private File uploadIndexDir = null;
+
+	@ConfigurationParameter(name = PARAM_METRICS_FILE, mandatory = false,
+			description = "If set, throughput and latency metrics (which are always available over JMX) are " +
+					"also written to this file periodically, and when the collection is complete")
+	private File metricsFile = null;
+
+	@ConfigurationParameter(name = PARAM_METRICS_INTERVAL_SECS, mandatory = false,
+			description = "How often, in seconds, metrics are written to the metrics file")
+	private int metricsIntervalSecs = 60;
+
+	private SharedRestClient apiClient;
 	private ItemCASAdapter casAdapter;
-	private List<Feature> annTypeFeatures = new ArrayList<Feature>();
-	private List<Feature> labelFeatures = new ArrayList<Feature>();
-	private TypeSystem currentTypeSystem = null;
-	private Set<Type> uploadableUimaTypes = null;
 	private UIMAToAlveoAnnConverter converter = null;
+	private ItemCache itemCache = null;
+	private UploadQueue uploadQueue = null;
+	private UploadBatch uploadBatch = null;
+	private UploadJournal uploadJournal = null;
+	private UploadFingerprintIndex uploadIndex = null;
+	private ChunkSizeController chunkSizer;
+	/** Items in flushed batches whose upload failed, reported when the current batch of CASes is complete */
+	private final List<UploadQueue.Failure> batchFailures = new ArrayList<UploadQueue.Failure>();
+	private final Random retryJitter = new Random();
+	/** The types which may be uploaded, and how to find annotations of those types */
+	private final TypeSystemCache<TypeWhitelist> uploadableUimaTypes = new TypeSystemCache<TypeWhitelist>() {
+		@Override
+		protected TypeWhitelist compile(TypeSystem ts) {
+			converter.setTypeSystem(ts); // idempotent and thread-safe, per its contract
+			Set<Type> types = getUploadableTypes(ts);
+			return new TypeWhitelist(types, types == null ? null : getRootTypes(ts, types));
+		}
+	};
 
 	@Override
 	public void initialize(UimaContext context) throws ResourceInitializationException {
 		super.initialize(context);
+		if (minChunkSize < 1 || maxChunkSize < minChunkSize)
+			throw new ResourceInitializationException(new IllegalArgumentException(String.format(
+					"Invalid chunk size range %d-%d", minChunkSize, maxChunkSize)));
+		if (metricsFile != null)
+			MetricsRegistry.startFileReporter(metricsFile, metricsIntervalSecs);
 		try {
-			apiClient = new RestClient(baseUrl.toString(), apiKey);
+			apiClient = SharedRestClient.acquire(baseUrl.toString(), apiKey, maxConcurrentRequests);
 			List<UIMAToAlveoAnnConverter> componentConverters = new ArrayList<UIMAToAlveoAnnConverter>(annotationConverterClasses.length + 1);
 			for (String accName : annotationConverterClasses)
 				componentConverters.add(getConverterInstance(accName));
 			converter = FallingBackUIMAAlveoConverter.withDefault(componentConverters, annTypeFeatureNames, labelFeatureNames);
+			if (itemCacheDir != null)
+				itemCache = ItemCache.forDirectory(itemCacheDir, itemCacheMaxMB * 1024L * 1024L);
+			// the baseline must reflect what is on the server now, so never read items from the cache
+			casAdapter = new ItemCASAdapter(baseUrl.toString(), false, true, converter, null);
+			chunkSizer = new ChunkSizeController(minChunkSize, maxChunkSize, INITIAL_CHUNK_SIZE, targetChunkLatencyMs);
+			if (uploadThreads > 0)
+				uploadQueue = new UploadQueue(uploadThreads, maxPendingUploads);
+			if (uploadIndexDir != null)
+				uploadIndex = UploadFingerprintIndex.open(uploadIndexDir, EXPECTED_NEW_INDEX_ENTRIES);
+			if (uploadJournalDir != null)
+				uploadJournal = UploadJournal.create(uploadJournalDir);
+			if (batchMaxItems > 0)
+				uploadBatch = new UploadBatch(batchMaxItems, batchMaxAnnotations, batchMaxBytes, batchMaxDelayMs);
 		} catch (InvalidServerAddressException e) {
 			throw new ResourceInitializationException(e);
 		} catch (ClassNotFoundException e) {
@@ -121,6 +317,8 @@ public class ItemAnnotationUploader extends CasConsumer_ImplBase {
 			throw new ResourceInitializationException(e);
 		} catch (IllegalAccessException e) {
 			throw new ResourceInitializationException(e);
+		} catch (IOException e) {
+			throw new ResourceInitializationException(e);
 		}
 	}
 
@@ -130,34 +328,46 @@ public class ItemAnnotationUploader extends CasConsumer_ImplBase {
 		return (UIMAToAlveoAnnConverter) convClass.newInstance();
 	}
 
-	private void initForTypeSystem(TypeSystem ts) throws AnalysisEngineProcessException {
-		if (ts.equals(currentTypeSystem))
-			return;
-		currentTypeSystem = ts;
-		casAdapter = new ItemCASAdapter(baseUrl.toString(), false, true, converter);
-		converter.setTypeSystem(currentTypeSystem);
-		try {
-			initTypeWhitelist();
-		} catch (MissingTypeNameException e) {
-			throw new AnalysisEngineProcessException(e);
+	/** Get the types which may be uploaded, or <code>null</code> if all types may be */
+	private Set<Type> getUploadableTypes(TypeSystem ts) {
+		if (uploadableUimaTypeNames == null)
+			return null;
+		Set<Type> types = new HashSet<Type>();
+		for (String tn : uploadableUimaTypeNames) {
+			Type t = ts.getType(tn);
+			if (t == null)
+				continue;
+			types.add(t);
+			for (Type subt : ts.getProperlySubsumedTypes(t))
+				types.add(subt);
 		}
+		return Collections.unmodifiableSet(types);
 	}
 
-	private void initTypeWhitelist() throws MissingTypeNameException {
-		if (uploadableUimaTypeNames != null) {
-			uploadableUimaTypes = new HashSet<Type>();
-			for (String tn : uploadableUimaTypeNames) {
-				Type t = currentTypeSystem.getType(tn);
-				if (t == null)
-					continue;
-				uploadableUimaTypes.add(t);
-				for (Type subt : currentTypeSystem.getProperlySubsumedTypes(t))
-					uploadableUimaTypes.add(subt);
-			}
-			if (uploadableUimaTypes.size() == 0)
-				throw new MissingTypeNameException("Found no types matching " +
-						uploadableUimaTypeNames + "; no annotations will be uploaded");
+	/** Get the annotation types among the uploadable types which are not subsumed by any other uploadable
+	 * annotation type. Iterating over the subtype-aware indexes of these finds every uploadable annotation
+	 * exactly once. If a supertype of uima.tcas.Annotation (such as uima.cas.TOP) is uploadable, the only
+	 * root is uima.tcas.Annotation itself.
+	 */
+	private static List<Type> getRootTypes(TypeSystem ts, Set<Type> types) {
+		Type annotationType = ts.getType(CAS.TYPE_NAME_ANNOTATION);
+		List<Type> roots = new ArrayList<Type>();
+		for (Type t : types) {
+			if (!ts.subsumes(annotationType, t))
+				continue; // never in the annotation index
+			Type parent = ts.getParent(t);
+			if (parent == null || !ts.subsumes(annotationType, parent) || !types.contains(parent))
+				roots.add(t);
 		}
+		return Collections.unmodifiableList(roots);
+	}
+
+	private TypeWhitelist initForTypeSystem(TypeSystem ts) throws AnalysisEngineProcessException {
+		TypeWhitelist whitelist = uploadableUimaTypes.get(ts);
+		if (whitelist.types != null && whitelist.types.isEmpty())
+			throw new AnalysisEngineProcessException(new MissingTypeNameException("Found no types matching " +
+					Arrays.asList(uploadableUimaTypeNames) + "; no annotations will be uploaded"));
+		return whitelist;
 	}
 
 
@@ -167,88 +377,550 @@ public class ItemAnnotationUploader extends CasConsumer_ImplBase {
 		// then iterate through the supplied CAS, keeping any annotations which
 		// don't correspond to anything in the original item
 		// then bulk-upload these annotations.
-		initForTypeSystem(aCAS.getTypeSystem());
-		Item apiItem;
-		CAS casOfOrig;
+		TypeWhitelist uploadableTypes = initForTypeSystem(aCAS.getTypeSystem());
+		String itemUri;
+		Item apiItem = null;
+		CAS casOfOrig = null;
+		TextWindow window;
+		ArrayFS readerAnns;
 		try {
-			apiItem = getOriginalFromAPI(aCAS);
-			casOfOrig = getCopyOfOriginalCAS(aCAS, apiItem);
+			itemUri = getItemUri(aCAS);
+			window = getWindow(aCAS);
+			readerAnns = diffAgainstReaderAnnotations ? getReaderAnnotations(aCAS) : null;
+		} catch (CASException e) {
+			throw new AnalysisEngineProcessException(e);
+		}
+		// the server needs offsets relative to the whole item
+		int offset = window != null ? window.getBegin() : 0;
+		List<AnnotationFS> candidates = getCandidates(aCAS, uploadableTypes, window, readerAnns != null);
+		AnnotationDiff diff = new AnnotationDiff(converter);
+		long[] fingerprints = null;
+
+		try {
+			if (uploadIndex != null) {
+				long itemHash = UploadFingerprintIndex.hashItem(itemUri);
+				fingerprints = new long[candidates.size()];
+				for (int i = 0; i < fingerprints.length; i++)
+					fingerprints[i] = diff.fingerprint(candidates.get(i), itemHash, offset);
+				if (uploadIndex.containsAll(fingerprints)) {
+					ALREADY_UPLOADED.mark();
+					return; // everything was uploaded (or already present) in an earlier run
+				}
+			}
+
+			if (readerAnns == null) {
+				apiItem = getItemFromAPI(itemUri);
+				FetchedItem original;
+				beginRequest();
+				try {
+					original = casAdapter.fetchItem(apiItem);
+				} finally {
+					apiClient.endRequest();
+				}
+				casOfOrig = getCopyOfOriginalCAS(aCAS, original, window);
+			}
 		} catch (CASException e) {
 			throw new AnalysisEngineProcessException(e);
 		} catch (UnauthorizedAPIKeyException e) {
 			throw new AnalysisEngineProcessException(e);
+		} catch (UIMAToAlveoAnnConverter.NotInitializedException e) {
+			throw new AnalysisEngineProcessException(e);
+		} catch (UIMAToAlveoAnnConverter.InvalidAnnotationTypeException e) {
+			throw new AnalysisEngineProcessException(e);
 		}
 
+		long conversionStart = System.nanoTime();
 		List<TextRestAnnotation> uploadable = new ArrayList<TextRestAnnotation>();
 
-		Set<TextRestAnnotation> oldAnns = new HashSet<TextRestAnnotation>();
-		FSIterator<AnnotationFS> oldAnnIter = casOfOrig.getAnnotationIndex().iterator(true);
-		while (oldAnnIter.hasNext()) {
-			AnnotationFS oldAnn = oldAnnIter.next();
-			try {
-				oldAnns.add(converter.convertToAlveo(oldAnn));
-			} catch (UIMAToAlveoAnnConverter.NotInitializedException e) {
-				throw new AnalysisEngineProcessException(e);
-			} catch (UIMAToAlveoAnnConverter.InvalidAnnotationTypeException e) {
-				throw new AnalysisEngineProcessException(e);
+		try {
+			if (readerAnns != null) {
+				for (int i = 0; i < readerAnns.size(); i++)
+					diff.addOriginal((AnnotationFS) readerAnns.get(i));
+			} else {
+				FSIterator<AnnotationFS> oldAnnIter = casOfOrig.getAnnotationIndex().iterator(true);
+				while (oldAnnIter.hasNext())
+					diff.addOriginal(oldAnnIter.next());
+			}
+			for (AnnotationFS ann : candidates) {
+				TextRestAnnotation asAlveoAnn = diff.findNew(ann, offset);
+				if (asAlveoAnn != null) // otherwise it already existed, at least post-conversion
+					uploadable.add(asAlveoAnn);
 			}
+		} catch (UIMAToAlveoAnnConverter.NotInitializedException e) {
+			throw new AnalysisEngineProcessException(e);
+		} catch (UIMAToAlveoAnnConverter.InvalidAnnotationTypeException e) {
+			throw new AnalysisEngineProcessException(e);
 		}
+		CONVERSION_TIME.updateNanos(System.nanoTime() - conversionStart);
+		DIFF_SIZE.update(uploadable.size());
+		if (uploadable.isEmpty()) {
+			recordUploaded(fingerprints); // everything is already on the server
+			if (uploadBatch != null && uploadBatch.isReadyToFlush())
+				flushBatch();
+			return;
+		}
+		// journal the annotations now, since the item may be checkpointed before they are sent
+		int[] journalIds = journalUpload(itemUri, uploadable);
+		if (uploadBatch != null || uploadQueue != null) // keep the item out of checkpoints until it is uploaded
+			OutstandingUploads.begin(itemUri);
+		if (uploadBatch != null) {
+			uploadBatch.add(itemUri, apiItem, uploadable, fingerprints, journalIds);
+			if (uploadBatch.isReadyToFlush())
+				flushBatch();
+			return;
+		}
+		upload(itemUri, apiItem, uploadable, fingerprints, journalIds);
+	}
 
-		FSIterator<AnnotationFS> annIter = aCAS.getAnnotationIndex().iterator(true);
+	/** Get the annotations which should be uploaded if they are not already on the server, in index order */
+	private List<AnnotationFS> getCandidates(CAS aCAS, TypeWhitelist uploadableTypes, TextWindow window,
+			boolean skipDocumentAnnotation) {
+		Type docAnnType = aCAS.getTypeSystem().getType(CAS.TYPE_NAME_DOCUMENT_ANNOTATION);
+		List<AnnotationFS> candidates = new ArrayList<AnnotationFS>();
+		// iterating over the indexes of the uploadable types skips annotations of other types (such as
+		// tokens, of which there may be many) entirely, unless most annotations are uploadable anyway
+		boolean byType = false;
+		if (uploadableTypes.roots != null && !uploadableTypes.roots.isEmpty()) {
+			int uploadableCount = 0;
+			for (Type root : uploadableTypes.roots)
+				uploadableCount += aCAS.getAnnotationIndex(root).size();
+			byType = uploadableCount < aCAS.getAnnotationIndex().size() / 2;
+		}
+		if (byType) {
+			for (Type root : uploadableTypes.roots)
+				addCandidates(aCAS.getAnnotationIndex(root).iterator(), null, window,
+						skipDocumentAnnotation ? docAnnType : null, candidates);
+			if (uploadableTypes.roots.size() > 1)
+				Collections.sort(candidates, INDEX_ORDER); // the diff is fastest in index order
+		} else {
+			addCandidates(aCAS.getAnnotationIndex().iterator(), uploadableTypes.types, window,
+					skipDocumentAnnotation ? docAnnType : null, candidates);
+		}
+		return candidates;
+	}
 
+	private static void addCandidates(FSIterator<AnnotationFS> annIter, Set<Type> uploadableTypes, TextWindow window,
+			Type skippedType, List<AnnotationFS> candidates) {
 		while (annIter.hasNext()) {
 			AnnotationFS ann = annIter.next();
-			if (!isAnnTypeUploadable(ann))
+			if (uploadableTypes != null && !uploadableTypes.contains(ann.getType()))
+				continue;
+			if (window != null && !isInWindowCore(ann, window))
+				continue; // in the overlap with another window, which is responsible for it
+			// the document annotation the reader creates is not one of the item's annotations on the server
+			if (skippedType != null && ann.getCAS().getTypeSystem().subsumes(skippedType, ann.getType()))
 				continue;
-			if (casOfOrig.getAnnotationIndex(ann.getType()).contains(ann))
-				continue; // annotation already existed in CAS - don't re-add
-			TextRestAnnotation asAlveoAnn = null;
+			candidates.add(ann);
+		}
+	}
+
+	/** Record that annotations with the supplied fingerprints are on the server, if there is an upload index */
+	private void recordUploaded(long[] fingerprints) throws AnalysisEngineProcessException {
+		if (uploadIndex == null || fingerprints == null)
+			return;
+		try {
+			uploadIndex.addAll(fingerprints);
+		} catch (IOException e) {
+			throw new AnalysisEngineProcessException(e);
+		}
+	}
+
+	/** Upload new annotations for an item, either now or by queueing them for a background thread */
+	private void upload(String itemUri, Item apiItem, List<TextRestAnnotation> uploadable, long[] fingerprints,
+			int[] journalIds) throws AnalysisEngineProcessException {
+		if (uploadQueue == null) {
+			uploadItem(itemUri, apiItem, uploadable, fingerprints, journalIds);
+			if (uploadBatch != null)
+				OutstandingUploads.end(itemUri);
+			return;
+		}
+		final String queuedUri = itemUri;
+		final Item queuedItem = apiItem;
+		final List<TextRestAnnotation> queuedAnns = uploadable;
+		final long[] queuedFingerprints = fingerprints;
+		final int[] queuedJournalIds = journalIds;
+		try {
+			uploadQueue.submit(itemUri, new UploadQueue.Upload() {
+				@Override
+				public void run() throws Exception {
+					uploadItem(queuedUri, queuedItem, queuedAnns, queuedFingerprints, queuedJournalIds);
+					OutstandingUploads.end(queuedUri);
+				}
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AnalysisEngineProcessException(e);
+		}
+	}
+
+	/** Upload new annotations for an item.
+	 *
+	 * @param apiItem The item, or <code>null</code> if it has not been retrieved yet
+	 * @param fingerprints The fingerprints to record in the upload index once the annotations have been
+	 *                     uploaded, or <code>null</code>
+	 * @param journalIds The journal records to commit once the annotations have been uploaded, or <code>null</code>
+	 */
+	private void uploadItem(String itemUri, Item apiItem, List<TextRestAnnotation> uploadable, long[] fingerprints,
+			int[] journalIds) throws AnalysisEngineProcessException {
+		if (apiItem == null) { // the baseline came from the reader's annotations, so we don't have the item yet
 			try {
-				asAlveoAnn = converter.convertToAlveo(ann);
-			} catch (UIMAToAlveoAnnConverter.NotInitializedException e) {
-				throw new AnalysisEngineProcessException(e);
-			} catch (UIMAToAlveoAnnConverter.InvalidAnnotationTypeException e) {
+				apiItem = getItemFromAPI(itemUri);
+			} catch (UnauthorizedAPIKeyException e) {
 				throw new AnalysisEngineProcessException(e);
 			}
-			if (oldAnns.contains(asAlveoAnn)) // already existed post-conversion
+		}
+
+		// large requests time out, so upload in chunks, sized according to how quickly the server is responding
+		LinkedList<List<TextRestAnnotation>> splitChunks = new LinkedList<List<TextRestAnnotation>>();
+		int next = 0;
+		while (!splitChunks.isEmpty() || next < uploadable.size()) {
+			List<TextRestAnnotation> chunk;
+			if (!splitChunks.isEmpty()) {
+				chunk = splitChunks.removeFirst();
+			} else {
+				chunk = uploadable.subList(next, Math.min(uploadable.size(), next + chunkSizer.getChunkSize()));
+				next += chunk.size();
+			}
+			Exception failure = storeChunk(apiItem, chunk);
+			if (failure == null)
+				continue;
+			List<TextRestAnnotation> unstored = removeStored(apiItem, chunk);
+			if (unstored.isEmpty())
 				continue;
-			uploadable.add(asAlveoAnn);
+			if (unstored.size() == 1)
+				throw new AnalysisEngineProcessException(failure);
+			// the chunk may be too large for the server to deal with, so try again in two halves
+			LOG.warn("Splitting chunk of {} annotations for {} after repeated failures", unstored.size(), itemUri);
+			CHUNK_SPLITS.mark();
+			int half = unstored.size() / 2;
+			splitChunks.addFirst(unstored.subList(half, unstored.size()));
+			splitChunks.addFirst(unstored.subList(0, half));
+		}
+		if (itemCache != null) // the cached copy no longer matches the server
+			itemCache.remove(itemUri);
+		recordUploaded(fingerprints);
+		commitJournal(journalIds);
+	}
+
+	/** Record the new annotations for an item in the journal, if there is one.
+	 *
+	 * @return the IDs to commit once the annotations have been uploaded, or <code>null</code>
+	 */
+	private int[] journalUpload(String itemUri, List<TextRestAnnotation> anns) throws AnalysisEngineProcessException {
+		if (uploadJournal == null)
+			return null;
+		try {
+			return new int[] {uploadJournal.append(itemUri, anns)};
+		} catch (IOException e) {
+			throw new AnalysisEngineProcessException(e);
 		}
+	}
 
+	/** Commit journal records whose annotations are all on the server. If the pipeline stops before
+	 * this, the annotations which were stored are skipped when the journal is replayed */
+	private void commitJournal(int[] journalIds) throws AnalysisEngineProcessException {
+		if (uploadJournal == null || journalIds == null)
+			return;
+		try {
+			for (int id : journalIds)
+				uploadJournal.commit(id);
+		} catch (IOException e) {
+			throw new AnalysisEngineProcessException(e);
+		}
+	}
 
-		// if we don't upload in chunks we get a socket timeout
-		for (List<TextRestAnnotation> chunk : Lists.partition(uploadable, 200)) {
+	/** Store a chunk of annotations, retrying if the request fails for what may be a transient reason.
+	 *
+	 * Storing annotations is not idempotent, and a request which failed may still have been stored in
+	 * whole or in part, so before each retry the item's annotations are read again and only those not
+	 * already on the server are sent.
+	 *
+	 * @return <code>null</code> if the chunk was stored, or the last exception if it could not be stored
+	 * 		after the maximum number of attempts
+	 */
+	private Exception storeChunk(Item apiItem, List<TextRestAnnotation> chunk) throws AnalysisEngineProcessException {
+		Exception failure = null;
+		for (int attempt = 0; attempt <= maxChunkRetries; attempt++) {
+			if (attempt > 0) {
+				CHUNK_RETRIES.mark();
+				backOff(attempt);
+				chunk = removeStored(apiItem, chunk);
+				if (chunk.isEmpty())
+					return null;
+			}
+			beginRequest();
+			long start = System.nanoTime();
 			try {
 				apiItem.storeNewAnnotations(chunk);
+				long elapsed = System.nanoTime() - start;
+				STORE_TIME.updateNanos(elapsed);
+				chunkSizer.succeeded(chunk.size(), elapsed);
+				return null;
 			} catch (EntityNotFoundException e) {
 				throw new AnalysisEngineProcessException(e);
-			} catch (UploadIntegrityException e) {
-				throw new AnalysisEngineProcessException(e);
 			} catch (InvalidAnnotationException e) {
 				throw new AnalysisEngineProcessException(e);
+			} catch (UploadIntegrityException e) {
+				// the server did not accept the upload, which usually means it was overloaded
+				failure = e;
+				chunkSizer.failed(false);
+			} catch (RuntimeException e) {
+				if (!isCausedBy(e, IOException.class))
+					throw e;
+				// the client reports I/O errors, including timeouts, as unchecked exceptions
+				failure = e;
+				chunkSizer.failed(isCausedBy(e, SocketTimeoutException.class));
+			} finally {
+				apiClient.endRequest();
+			}
+			LOG.warn("Storing {} annotations for {} failed (attempt {}): {}",
+					new Object[] {chunk.size(), apiItem.getUri(), attempt + 1, failure.toString()});
+		}
+		return failure;
+	}
+
+	/** Get the annotations in a chunk whose upload failed which are not on the server.
+	 *
+	 * If the annotations can't be read, the exception is thrown rather than risking duplicates
+	 * by sending the chunk again; the annotations are left uncommitted in the journal, if there is one.
+	 */
+	private List<TextRestAnnotation> removeStored(Item apiItem, List<TextRestAnnotation> chunk)
+			throws AnalysisEngineProcessException {
+		List<TextAnnotation> onServer;
+		try {
+			Item current = getItemFromAPI(apiItem.getUri());
+			beginRequest();
+			try {
+				onServer = current.getTextAnnotations();
+			} finally {
+				apiClient.endRequest();
 			}
+		} catch (UnauthorizedAPIKeyException e) {
+			throw new AnalysisEngineProcessException(e);
+		} catch (UnsupportedLDSchemaException e) {
+			throw new AnalysisEngineProcessException(e);
 		}
+		Set<String> keys = AnnotationKeys.keysOf(onServer);
+		List<TextRestAnnotation> unstored = new ArrayList<TextRestAnnotation>(chunk.size());
+		for (TextRestAnnotation ann : chunk) {
+			if (!keys.contains(AnnotationKeys.keyOf(ann)))
+				unstored.add(ann);
+		}
+		if (unstored.size() < chunk.size())
+			LOG.info("{} of {} annotations for {} were stored despite the failure",
+					new Object[] {chunk.size() - unstored.size(), chunk.size(), apiItem.getUri()});
+		return unstored;
 	}
 
-	private boolean isAnnTypeUploadable(AnnotationFS ann) {
-		return uploadableUimaTypes == null || uploadableUimaTypes.contains(ann.getType());
+	/** Wait before a retry, for a random time of up to the base delay times 2^(attempt - 1) */
+	private void backOff(int attempt) throws AnalysisEngineProcessException {
+		long maxDelay = (long) retryBackoffMs << Math.min(attempt - 1, 16);
+		long delay;
+		synchronized (retryJitter) {
+			delay = maxDelay / 2 + (long) (retryJitter.nextDouble() * maxDelay / 2);
+		}
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AnalysisEngineProcessException(e);
+		}
 	}
 
-	private Item getOriginalFromAPI(CAS providedCas) throws UnauthorizedAPIKeyException, CASException {
+	private static boolean isCausedBy(Throwable t, Class<? extends Throwable> causeClass) {
+		for (; t != null; t = t.getCause()) {
+			if (causeClass.isInstance(t))
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void batchProcessComplete() throws AnalysisEngineProcessException {
+		super.batchProcessComplete();
+		flushBatch();
+		completeUploads();
+	}
+
+	@Override
+	public void collectionProcessComplete() throws AnalysisEngineProcessException {
+		super.collectionProcessComplete();
+		try {
+			flushBatch();
+			completeUploads();
+		} finally {
+			if (metricsFile != null) {
+				try {
+					MetricsRegistry.writeReport(metricsFile);
+				} catch (IOException e) {
+					throw new AnalysisEngineProcessException(e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (uploadQueue != null)
+			uploadQueue.close();
+		if (apiClient != null) {
+			apiClient.release();
+			apiClient = null;
+		}
+		if (uploadJournal != null) {
+			try {
+				uploadJournal.close();
+			} catch (IOException e) {
+				LOG.warn("Unable to close upload journal: {}", e.getMessage());
+			}
+		}
+		if (uploadIndex != null) {
+			try {
+				uploadIndex.close();
+			} catch (IOException e) {
+				LOG.warn("Unable to close upload index: {}", e.getMessage());
+			}
+			uploadIndex = null;
+		}
+		super.destroy();
+	}
+
+	/**
+	 * Upload everything in the batch. Failures are kept until {@link #completeUploads()}, since a flush
+	 * may be triggered while processing an item which is unrelated to the ones which failed.
+	 */
+	private void flushBatch() {
+		if (uploadBatch == null || uploadBatch.isEmpty())
+			return;
+		for (UploadBatch.Entry entry : uploadBatch.removeAll()) {
+			try {
+				upload(entry.getItemUri(), entry.getApiItem(), entry.getAnnotations(), entry.getFingerprints(),
+						entry.getJournalIds());
+			} catch (AnalysisEngineProcessException e) {
+				// don't let one item stop the rest of the batch being uploaded
+				batchFailures.add(new UploadQueue.Failure(entry.getItemUri(), e));
+			}
+		}
+	}
+
+	/**
+	 * Wait for any queued uploads to finish, throwing an exception if any of them failed or if any
+	 * flushed batch had failures
+	 */
+	private void completeUploads() throws AnalysisEngineProcessException {
+		List<UploadQueue.Failure> failures = new ArrayList<UploadQueue.Failure>(batchFailures);
+		batchFailures.clear();
+		if (uploadQueue != null) {
+			try {
+				failures.addAll(uploadQueue.drain());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new AnalysisEngineProcessException(e);
+			}
+		}
+		reportFailures(failures);
+	}
+
+	private void reportFailures(List<UploadQueue.Failure> failures) throws AnalysisEngineProcessException {
+		if (failures.isEmpty())
+			return;
+		List<String> failedUris = new ArrayList<String>(failures.size());
+		for (UploadQueue.Failure f : failures) {
+			LOG.error("Annotations for {} were not uploaded", f.getItemUri(), f.getCause());
+			failedUris.add(f.getItemUri());
+		}
+		throw new AnalysisEngineProcessException(new UploadFailedException(
+				"Uploading annotations failed for " + failures.size() + " item(s): " + failedUris,
+				failures.get(0).getCause()));
+	}
+
+	/** Get the original annotations which the reader stored with the item, or <code>null</code> if there are none */
+	private ArrayFS getReaderAnnotations(CAS providedCas) throws CASException {
+		return JCasUtil.selectSingle(providedCas.getJCas(), AlveoItemSource.class).getAnnotations();
+	}
+
+	private Item getItemFromAPI(String itemUri) throws UnauthorizedAPIKeyException, AnalysisEngineProcessException {
+		beginRequest();
+		try {
+			long start = System.nanoTime();
+			Item item = apiClient.getClient().getItemByUri(itemUri);
+			ITEM_FETCH_TIME.updateNanos(System.nanoTime() - start);
+			return item;
+		} finally {
+			apiClient.endRequest();
+		}
+	}
+
+	/** Wait until the shared client allows another request. Must be followed by a call to <code>endRequest()</code> */
+	private void beginRequest() throws AnalysisEngineProcessException {
+		try {
+			apiClient.beginRequest();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AnalysisEngineProcessException(e);
+		}
+	}
+
+	private String getItemUri(CAS providedCas) throws CASException {
 		AlveoItemSource vlis = JCasUtil.selectSingle(providedCas.getJCas(), AlveoItemSource.class);
-		String itemUri = vlis.getSourceUri();
-		return apiClient.getItemByUri(itemUri);
+		return vlis.getSourceUri();
 	}
 
-	private CAS getCopyOfOriginalCAS(CAS updatedCAS, Item origItem) throws CASException, AnalysisEngineProcessException {
+	private CAS getCopyOfOriginalCAS(CAS updatedCAS, FetchedItem origItem, TextWindow window)
+			throws CASException, AnalysisEngineProcessException {
 		CAS casForOrig = updatedCAS.createView("original");
-		casAdapter.storeItemInCas(origItem, casForOrig);
+		casAdapter.storeItemInCas(origItem, casForOrig, window);
 		return casForOrig;
 	}
 
+	/** Get the window of the item which the CAS holds, or <code>null</code> if it holds the whole item */
+	private TextWindow getWindow(CAS providedCas) throws CASException {
+		for (ItemWindow iw : JCasUtil.select(providedCas.getJCas(), ItemWindow.class)) {
+			int begin = iw.getItemOffset();
+			return new TextWindow(iw.getWindowIndex(), iw.getWindowCount(), begin,
+					begin + providedCas.getDocumentText().length(), iw.getCoreBegin(), iw.getCoreEnd());
+		}
+		return null;
+	}
+
+	private static boolean isInWindowCore(AnnotationFS ann, TextWindow window) {
+		int itemBegin = ann.getBegin() + window.getBegin();
+		return itemBegin >= window.getCoreBegin() && itemBegin < window.getCoreEnd();
+	}
+
+	/** Wraps the set of uploadable types, which may be <code>null</code> */
+	private static class TypeWhitelist {
+		final Set<Type> types;
+		/** The uploadable annotation types with no uploadable supertype, or <code>null</code> for all types */
+		final List<Type> roots;
+
+		TypeWhitelist(Set<Type> types, List<Type> roots) {
+			this.types = types;
+			this.roots = roots;
+		}
+	}
+
+	/** Annotation index order, ignoring type priorities: by begin ascending, then end descending */
+	private static final Comparator<AnnotationFS> INDEX_ORDER = new Comparator<AnnotationFS>() {
+		@Override
+		public int compare(AnnotationFS a, AnnotationFS b) {
+			if (a.getBegin() != b.getBegin())
+				return a.getBegin() < b.getBegin() ? -1 : 1;
+			if (a.getEnd() != b.getEnd())
+				return a.getEnd() > b.getEnd() ? -1 : 1;
+			return 0;
+		}
+	};
+
 	public class MissingTypeNameException extends Exception {
 		public MissingTypeNameException(String s) {
 			super(s);
 		}
 	}
+
+	public static class UploadFailedException extends Exception {
+		public UploadFailedException(String s, Throwable cause) {
+			super(s, cause);
+		}
+	}
 }
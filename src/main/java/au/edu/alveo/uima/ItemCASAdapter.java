@@ -1,7 +1,11 @@
 package au.edu.alveo.uima;
 
+import au.edu.alveo.uima.conversions.TypeSystemCache;
 import au.edu.alveo.uima.conversions.UIMAToAlveoAnnConverter;
+import au.edu.alveo.uima.metrics.Histogram;
+import au.edu.alveo.uima.metrics.MetricsRegistry;
 import au.edu.alveo.uima.types.ItemMetadata;
+import au.edu.alveo.uima.types.ItemWindow;
 import au.edu.alveo.uima.types.VLabDocSource;
 import au.edu.alveo.uima.types.AlveoItemSource;
 import au.edu.alveo.client.UnknownValueException;
@@ -15,14 +19,29 @@ import org.apache.uima.cas.CASException;
 import org.apache.uima.cas.Feature;
 import org.apache.uima.cas.Type;
 import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.impl.LowLevelCAS;
+import org.apache.uima.cas.impl.LowLevelIndexRepository;
+import org.apache.uima.cas.impl.LowLevelTypeSystem;
 import org.apache.uima.cas.text.AnnotationFS;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A class, primarily for internal usage, which does the work of converting
@@ -30,60 +49,402 @@ import java.util.Map;
  */
 class ItemCASAdapter {
 	private static final Logger LOG = LoggerFactory.getLogger(ItemCASAdapter.class);
+	private static final Histogram ITEM_FETCH_TIME = MetricsRegistry.timer("rest.itemFetch");
+	private static final Histogram ANNOTATION_FETCH_TIME = MetricsRegistry.timer("rest.annotationFetch");
+	private static final Histogram DOCUMENT_FETCH_TIME = MetricsRegistry.timer("rest.documentFetch");
+	private static final Histogram CAS_BUILD_TIME = MetricsRegistry.timer("adapter.casBuild");
+	private static final int DOCUMENT_CONNECT_TIMEOUT_MS = 30000;
+	private static final int DOCUMENT_READ_TIMEOUT_MS = 300000;
 
 	private final boolean includeRawDocs;
 	private final boolean includeAnnotations;
 	private final String serverBaseUrl;
-	private Map<String, Type> urisToAnnTypes = new HashMap<String, Type>();
+	private final TypeSystemCache<Map<String, Type>> urisToAnnTypes = new TypeSystemCache<Map<String, Type>>() {
+		@Override
+		protected Map<String, Type> compile(TypeSystem ts) {
+			return mapAnnTypeUris(ts);
+		}
+	};
 	private final UIMAToAlveoAnnConverter uimaToAlveoAnnConverter;
+	private final ItemCache itemCache;
+	private Set<String> rawDocTypes = null;
+	private long maxRawDocBytes = 0;
+	private String apiKey = null;
+	private AnnotationTypeFilter annotationTypeFilter = null;
+	private int windowSize = 0;
+	private int windowOverlap = 0;
+	private AnnotationTypeFilter windowAlignment = null;
 
 
 	public ItemCASAdapter(String serverBaseUrl, boolean includeRawDocs, boolean includeAnnotations,
 			UIMAToAlveoAnnConverter uimaToAlveoAnnConverter) {
+		this(serverBaseUrl, includeRawDocs, includeAnnotations, uimaToAlveoAnnConverter, null);
+	}
+
+	/**
+	 * @param itemCache If not <code>null</code>, items are read from this cache in preference to
+	 *                  the server, and items fetched from the server are stored in it
+	 */
+	public ItemCASAdapter(String serverBaseUrl, boolean includeRawDocs, boolean includeAnnotations,
+			UIMAToAlveoAnnConverter uimaToAlveoAnnConverter, ItemCache itemCache) {
 		this.serverBaseUrl = serverBaseUrl;
 		this.includeRawDocs = includeRawDocs;
 		this.includeAnnotations = includeAnnotations;
 		this.uimaToAlveoAnnConverter = uimaToAlveoAnnConverter;
+		this.itemCache = itemCache;
+	}
+
+	/** Restrict which raw documents are retrieved and stored as separate views when
+	 * raw documents are included.
+	 *
+	 * @param docTypes The document types to include, or <code>null</code> to include all types
+	 * @param maxBytes Documents larger than this are not retrieved; instead the sofa of the view
+	 *                 refers to the document URL. Zero or less means no limit
+	 * @param apiKey The API key, which is needed to retrieve documents while enforcing the size limit
+	 */
+	public void setRawDocSelection(Collection<String> docTypes, long maxBytes, String apiKey) {
+		this.rawDocTypes = docTypes == null ? null : new HashSet<String>(docTypes);
+		this.maxRawDocBytes = maxBytes;
+		this.apiKey = apiKey;
+	}
+
+	/** Restrict which Alveo annotations are converted into UIMA annotations. Annotations which
+	 * are filtered out are never created in the CAS, and are not included in the
+	 * <code>annotations</code> feature of the {@link AlveoItemSource}.
+	 *
+	 * @param includeTypes Alveo annotation type URIs or UIMA type names (which also match their
+	 *                     subtypes) to include, or <code>null</code> or empty to include all types
+	 * @param excludeTypes Alveo annotation type URIs or UIMA type names to exclude, or <code>null</code>
+	 */
+	public void setAnnotationTypeFilter(Collection<String> includeTypes, Collection<String> excludeTypes) {
+		AnnotationTypeFilter filter = new AnnotationTypeFilter(includeTypes, excludeTypes);
+		this.annotationTypeFilter = filter.acceptsAll() ? null : filter;
+	}
+
+	/** Divide items with long primary texts into several overlapping windows, each of which can be
+	 * stored in its own CAS (see {@link #getWindows(FetchedItem, TypeSystem)}).
+	 *
+	 * @param size The maximum number of characters in each window (unless it must be widened to fit an
+	 *             annotation), or zero to never divide items
+	 * @param overlap The number of characters each window overlaps the next; must be less than <code>size</code>
+	 * @param alignmentType If not <code>null</code>, an Alveo annotation type URI or UIMA type name; windows are
+	 *                      preferably divided at the start of annotations of this type
+	 */
+	public void setWindowing(int size, int overlap, String alignmentType) {
+		this.windowSize = size;
+		this.windowOverlap = overlap;
+		this.windowAlignment = alignmentType == null ? null
+				: new AnnotationTypeFilter(Collections.singletonList(alignmentType), null);
+	}
+
+	/** Get the windows an item should be divided into.
+	 *
+	 * A window is widened beyond the configured size when an annotation which begins in its
+	 * core would otherwise run past its end, so every annotation is stored in at least one window.
+	 *
+	 * @return the windows, or an empty list if the item should be stored in a single CAS
+	 */
+	public List<TextWindow> getWindows(FetchedItem item, TypeSystem ts) {
+		String text = item.getPrimaryText();
+		if (windowSize <= 0 || text == null || text.length() <= windowSize)
+			return Collections.emptyList();
+		int[] alignmentPoints = new int[0];
+		if (windowAlignment != null && item.hasAnnotations()) {
+			List<Integer> points = new ArrayList<Integer>();
+			for (FetchedItem.FetchedAnnotation ta : item.getAnnotations()) {
+				if (windowAlignment.accepts(ta.getType(), getTypeForAnnotation(ts, ta.getType()), ts))
+					points.add(ta.getStart());
+			}
+			alignmentPoints = new int[points.size()];
+			for (int i = 0; i < alignmentPoints.length; i++)
+				alignmentPoints[i] = points.get(i);
+		}
+		List<TextWindow> windows = TextWindow.split(text.length(), windowSize, windowOverlap, alignmentPoints);
+		if (windows.isEmpty() || !item.hasAnnotations())
+			return windows;
+		// an annotation which runs past the end of the window it begins in would otherwise be in
+		// no window at all, so widen that window to hold it
+		Map<String, Boolean> accepted = new HashMap<String, Boolean>();
+		List<FetchedItem.FetchedAnnotation> anns = new ArrayList<FetchedItem.FetchedAnnotation>();
+		for (FetchedItem.FetchedAnnotation ta : item.getAnnotations()) {
+			Boolean acc = accepted.get(ta.getType());
+			if (acc == null) {
+				acc = annotationTypeFilter == null
+						|| annotationTypeFilter.accepts(ta.getType(), getTypeForAnnotation(ts, ta.getType()), ts);
+				accepted.put(ta.getType(), acc);
+			}
+			if (acc)
+				anns.add(ta);
+		}
+		int[] begins = new int[anns.size()];
+		int[] ends = new int[anns.size()];
+		for (int i = 0; i < begins.length; i++) {
+			begins[i] = anns.get(i).getStart();
+			ends[i] = anns.get(i).getEnd();
+		}
+		List<TextWindow> widened = TextWindow.widenToFit(windows, begins, ends);
+		for (int i = 0; i < widened.size(); i++) {
+			if (widened.get(i) != windows.get(i))
+				LOG.debug("Widened window {} of item {} from {} to {} characters to fit the annotations beginning in it",
+						new Object[]{i, item.getUri(), windows.get(i).getEnd() - windows.get(i).getBegin(),
+								widened.get(i).getEnd() - widened.get(i).getBegin()});
+		}
+		return widened;
 	}
 
 	public void storeItemInCas(Item item, CAS cas) throws CASException {
-		storeMainItem(item, cas);
+		storeItemInCas(fetchItem(item), cas);
+	}
+
+	/** Store an item which has already been retrieved from the server in the supplied CAS.
+	 *
+	 * This does not make any requests to the server, so the only cost is that of populating the CAS
+	 */
+	public void storeItemInCas(FetchedItem item, CAS cas) throws CASException {
+		storeItemInCas(item, cas, null);
+	}
+
+	/** Store a window of an item which has already been retrieved from the server in the supplied CAS.
+	 *
+	 * Only the text and annotations within the window are stored, with their offsets relative to the
+	 * start of the window, and an {@link ItemWindow} records where the window is in the item.
+	 * Raw documents are only stored with the first window.
+	 *
+	 * @param window The window to store, or <code>null</code> to store the whole item
+	 */
+	public void storeItemInCas(FetchedItem item, CAS cas, TextWindow window) throws CASException {
+		long start = System.nanoTime();
+		storeMainItem(item, cas, window);
 		int ctr = 1;
+		if (includeRawDocs && (window == null || window.getIndex() == 0)) {
+			for (FetchedItem.FetchedDocument fd : item.getDocuments()) {
+				++ctr; // count every document so view names don't depend on the selection
+				if (fd.getContent() == FetchedItem.FetchedDocument.Content.SKIPPED || !isDocTypeSelected(fd.getDocType()))
+					continue;
+				CAS view = cas.createView(String.format("%02d: %s", ctr, fd.getDocType()));
+				storeSourceDoc(fd, view);
+			}
+		}
+		CAS_BUILD_TIME.updateNanos(System.nanoTime() - start);
+	}
+
+	/** Retrieve everything about the item which is needed to populate a CAS.
+	 *
+	 * This is the network-bound part of converting an item, and it does not touch
+	 * any mutable state of the adapter, so it is safe to call from multiple threads at once.
+	 * If there is an item cache, it is consulted first.
+	 */
+	public FetchedItem fetchItem(Item item) throws CASException {
+		return fetchItem(item, null);
+	}
+
+	/** Retrieve everything about the item which is needed to populate a CAS, using annotations
+	 * which have already been retrieved (for example by a {@link BulkAnnotationFetcher}).
+	 *
+	 * @param annotations The annotations of the item, or <code>null</code> to fetch them from the server
+	 */
+	public FetchedItem fetchItem(Item item, List<FetchedItem.FetchedAnnotation> annotations) throws CASException {
+		FetchedItem cached = getCachedItem(item.getUri());
+		if (cached != null && hasSelectedDocuments(cached))
+			return cached;
+		FetchedItem fetched = fetchItemFromServer(item, annotations);
+		if (itemCache != null)
+			itemCache.put(fetched);
+		return fetched;
+	}
+
+	/** Get the item with the supplied URI from the item cache, if it is there and has
+	 * all of the data this adapter needs.
+	 *
+	 * @return the cached item, or <code>null</code> if there is no cache or no suitable entry
+	 */
+	public FetchedItem getCachedItem(String itemUri) {
+		if (itemCache == null)
+			return null;
+		return itemCache.get(itemUri, includeAnnotations, includeRawDocs);
+	}
+
+	private FetchedItem fetchItemFromServer(Item item, List<FetchedItem.FetchedAnnotation> bulkAnns) throws CASException {
+		List<FetchedItem.FetchedAnnotation> anns = null;
+		if (includeAnnotations && bulkAnns != null) {
+			anns = bulkAnns;
+		} else if (includeAnnotations) {
+			List<TextAnnotation> textAnns;
+			long start = System.nanoTime();
+			try {
+				textAnns = item.getTextAnnotations();
+			} catch (UnsupportedLDSchemaException e) {
+				throw new CASException(e);
+			}
+			ANNOTATION_FETCH_TIME.updateNanos(System.nanoTime() - start);
+			anns = new ArrayList<FetchedItem.FetchedAnnotation>(textAnns.size());
+			for (TextAnnotation ta : textAnns)
+				anns.add(new FetchedItem.FetchedAnnotation(ta.getType(), ta.getLabel(),
+						ta.getStartOffset(), ta.getEndOffset()));
+		}
+		List<FetchedItem.FetchedDocument> docs = null;
 		if (includeRawDocs) {
+			docs = new ArrayList<FetchedItem.FetchedDocument>();
 			for (TextDocument td : item.textDocuments()) {
-				++ctr;
 				try {
-					String docType = td.getType();
-					CAS view = cas.createView(String.format("%02d: %s", ctr, docType));
-					storeSourceDoc(td, view);
+					docs.add(fetchDocument(td, td.getType()));
 				} catch (UnknownValueException e) {
 					throw new CASException(e);
+				} catch (IOException e) {
+					throw new CASException(e);
 				}
 			}
 		}
+		long start = System.nanoTime();
+		String primaryText = item.primaryText();
+		Map<String, String> metadata = item.getMetadata();
+		ITEM_FETCH_TIME.updateNanos(System.nanoTime() - start);
+		return new FetchedItem(item.getUri(), primaryText, metadata, anns, docs);
+	}
+
+	private FetchedItem.FetchedDocument fetchDocument(TextDocument td, String docType) throws IOException {
+		String dataUrl = td.getDataUrl();
+		if (!isDocTypeSelected(docType))
+			return new FetchedItem.FetchedDocument(docType, dataUrl, null, FetchedItem.FetchedDocument.Content.SKIPPED,
+					maxRawDocBytes);
+		long start = System.nanoTime();
+		String rawText = maxRawDocBytes > 0 ? fetchLimited(dataUrl, maxRawDocBytes) : td.rawText();
+		DOCUMENT_FETCH_TIME.updateNanos(System.nanoTime() - start);
+		if (maxRawDocBytes > 0 && rawText == null)
+			return new FetchedItem.FetchedDocument(docType, dataUrl, null, FetchedItem.FetchedDocument.Content.BY_REFERENCE,
+					maxRawDocBytes);
+		return new FetchedItem.FetchedDocument(docType, dataUrl, rawText, maxRawDocBytes);
+	}
+
+	private boolean isDocTypeSelected(String docType) {
+		return rawDocTypes == null || rawDocTypes.contains(docType);
 	}
 
-	private void storeAnnotations(Item item, AnnotationFS vlabItemSrc) throws CASException {
-		List<TextAnnotation> anns;
+	/** Returns whether an item (usually from the cache) has every document which the current selection needs,
+	 * each retrieved (or not) according to the current size limit */
+	private boolean hasSelectedDocuments(FetchedItem item) {
+		if (!includeRawDocs)
+			return true;
+		for (FetchedItem.FetchedDocument fd : item.getDocuments()) {
+			if (!isDocTypeSelected(fd.getDocType()))
+				continue;
+			if (fd.getContent() == FetchedItem.FetchedDocument.Content.SKIPPED || fd.getMaxBytes() != maxRawDocBytes)
+				return false;
+		}
+		return true;
+	}
+
+	/** Retrieve a document, giving up as soon as it turns out to be larger than <code>maxBytes</code>,
+	 * whether or not the server reports its size. The REST client has no way to limit the size of
+	 * a document, so this makes the request itself, authenticated in the same way.
+	 *
+	 * @return the text of the document, or <code>null</code> if it is too large
+	 */
+	private String fetchLimited(String url, long maxBytes) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+		conn.setConnectTimeout(DOCUMENT_CONNECT_TIMEOUT_MS);
+		conn.setReadTimeout(DOCUMENT_READ_TIMEOUT_MS);
+		if (apiKey != null)
+			conn.setRequestProperty("X-API-KEY", apiKey);
 		try {
-			anns = item.getTextAnnotations();
-		} catch (UnsupportedLDSchemaException e) {
-			throw new CASException(e);
+			int status = conn.getResponseCode();
+			if (status != HttpURLConnection.HTTP_OK)
+				throw new IOException("Unable to retrieve document " + url + ": HTTP status " + status);
+			long length = conn.getContentLengthLong();
+			if (length > maxBytes)
+				return null;
+			ByteArrayOutputStream content = new ByteArrayOutputStream(length > 0 ? (int) length : 8192);
+			InputStream in = conn.getInputStream();
+			try {
+				byte[] buf = new byte[8192];
+				int n;
+				while ((n = in.read(buf)) != -1) {
+					if (content.size() + n > maxBytes)
+						return null; // the size wasn't reported, or was wrong
+					content.write(buf, 0, n);
+				}
+			} finally {
+				in.close();
+			}
+			return new String(content.toByteArray(), getCharset(conn.getContentType()));
+		} finally {
+			conn.disconnect();
 		}
-		int ctr = 0;
+	}
+
+	/** Get the character set named by a Content-Type header, defaulting to UTF-8 */
+	private static Charset getCharset(String contentType) {
+		if (contentType != null) {
+			for (String param : contentType.split(";")) {
+				param = param.trim();
+				if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+					try {
+						return Charset.forName(param.substring(8).replace("\"", "").trim());
+					} catch (IllegalArgumentException e) {
+						LOG.warn("Unknown character set in content type {}; assuming UTF-8", contentType);
+					}
+				}
+			}
+		}
+		return Charset.forName("UTF-8");
+	}
+
+	/** Orders annotations the same way as the annotation index: by start, then longest first */
+	private static final Comparator<FetchedItem.FetchedAnnotation> INDEX_ORDER = new Comparator<FetchedItem.FetchedAnnotation>() {
+		@Override
+		public int compare(FetchedItem.FetchedAnnotation a, FetchedItem.FetchedAnnotation b) {
+			if (a.getStart() != b.getStart())
+				return a.getStart() < b.getStart() ? -1 : 1;
+			if (a.getEnd() != b.getEnd())
+				return a.getEnd() > b.getEnd() ? -1 : 1;
+			return 0;
+		}
+	};
+
+	private void storeAnnotations(FetchedItem item, AnnotationFS vlabItemSrc, TextWindow window) throws CASException {
 		CAS cas = vlabItemSrc.getCAS();
 		TypeSystem ts = cas.getTypeSystem();
+		LowLevelCAS llCas = cas.getLowLevelCAS();
+		LowLevelTypeSystem llTs = llCas.ll_getTypeSystem();
+		// resolve each type URI (and whether it passes the filter) once, rather than once per annotation.
+		// Annotations which don't pass the filter map to null, and no feature structures are created for them
+		Map<String, Integer> typeCodes = new HashMap<String, Integer>();
+		List<FetchedItem.FetchedAnnotation> anns = new ArrayList<FetchedItem.FetchedAnnotation>();
+		for (FetchedItem.FetchedAnnotation ta : item.getAnnotations()) {
+			if (window != null && !window.contains(ta.getStart(), ta.getEnd()))
+				continue;
+			if (!typeCodes.containsKey(ta.getType())) {
+				Type type = getTypeForAnnotation(ts, ta.getType());
+				boolean accepted = annotationTypeFilter == null || annotationTypeFilter.accepts(ta.getType(), type, ts);
+				typeCodes.put(ta.getType(), accepted ? llTs.ll_getCodeForType(type) : null);
+			}
+			if (typeCodes.get(ta.getType()) != null)
+				anns.add(ta);
+		}
+		// adding annotations in index order means each insertion goes at the end of the index
+		Collections.sort(anns, INDEX_ORDER);
+
+		int sofaFeat = llTs.ll_getCodeForFeature(ts.getFeatureByFullName(CAS.FEATURE_FULL_NAME_SOFA));
+		int beginFeat = llTs.ll_getCodeForFeature(ts.getFeatureByFullName(CAS.FEATURE_FULL_NAME_BEGIN));
+		int endFeat = llTs.ll_getCodeForFeature(ts.getFeatureByFullName(CAS.FEATURE_FULL_NAME_END));
+		int annTypeFeat = llTs.ll_getCodeForFeature(ts.getFeatureByFullName("au.edu.alveo.uima.types.ItemAnnotation:annType"));
+		int labelFeat = llTs.ll_getCodeForFeature(ts.getFeatureByFullName("au.edu.alveo.uima.types.ItemAnnotation:label"));
+		int sofaRef = llCas.ll_getFSRef(cas.getSofa());
+		LowLevelIndexRepository indexes = llCas.ll_getIndexRepository();
 		ArrayFS fsForAnns = cas.createArrayFS(anns.size());
-		Feature annTypeFeature = ts.getFeatureByFullName("au.edu.alveo.uima.types.ItemAnnotation:annType");
-		Feature labelFeature = ts.getFeatureByFullName("au.edu.alveo.uima.types.ItemAnnotation:label");
+		int arrayRef = llCas.ll_getFSRef(fsForAnns);
 
-		for (TextAnnotation ta : anns) {
-			Type type = getTypeForAnnotation(ts, ta.getType());
-			AnnotationFS afs = cas.createAnnotation(type, ta.getStartOffset(), ta.getEndOffset());
-			afs.setFeatureValueFromString(annTypeFeature, ta.getType());
-			afs.setFeatureValueFromString(labelFeature, ta.getLabel());
-			cas.addFsToIndexes(afs);
-			fsForAnns.set(ctr++, afs);
+		int offset = window == null ? 0 : window.getBegin();
+		int ctr = 0;
+		for (FetchedItem.FetchedAnnotation ta : anns) {
+			int annRef = llCas.ll_createFS(typeCodes.get(ta.getType()));
+			llCas.ll_setRefValue(annRef, sofaFeat, sofaRef);
+			llCas.ll_setIntValue(annRef, beginFeat, ta.getStart() - offset);
+			llCas.ll_setIntValue(annRef, endFeat, ta.getEnd() - offset);
+			llCas.ll_setStringValue(annRef, annTypeFeat, ta.getType());
+			llCas.ll_setStringValue(annRef, labelFeat, ta.getLabel());
+			indexes.ll_addFS(annRef);
+			llCas.ll_setRefArrayValue(arrayRef, ctr++, annRef);
 		}
 		vlabItemSrc.setFeatureValue(ts.getFeatureByFullName("au.edu.alveo.uima.types.AlveoItemSource:annotations"),
 				fsForAnns);
@@ -91,9 +452,7 @@ class ItemCASAdapter {
 	}
 
 	private Type getTypeForAnnotation(TypeSystem typeSystem, String annTypeUri) {
-		if (urisToAnnTypes.size() == 0)
-			cacheAnnTypeUris(typeSystem);
-		Type type = urisToAnnTypes.get(annTypeUri);
+		Type type = urisToAnnTypes.get(typeSystem).get(annTypeUri);
 		if (type == null) {
 			LOG.error("Unknown annotation type URI: {}", annTypeUri);
 			type = typeSystem.getType("au.edu.alveo.uima.types.UnknownItemAnnotation");
@@ -101,44 +460,54 @@ class ItemCASAdapter {
 		return type;
 	}
 
-	private void cacheAnnTypeUris(TypeSystem typeSystem)  {
-		// XXX: this assumes that all CASes have effectively the same type system.
-		// this will probably be true in practice generally, although
-		// we should maybe clear urisToAnnTypes for each new CAS just in case?
-		uimaToAlveoAnnConverter.setTypeSystem(typeSystem);
+	private Map<String, Type> mapAnnTypeUris(TypeSystem typeSystem)  {
+		uimaToAlveoAnnConverter.setTypeSystem(typeSystem); // idempotent and thread-safe, per its contract
+		Map<String, Type> map = new HashMap<String, Type>();
 		Iterator<Type> types = typeSystem.getTypeIterator();
 		while (types.hasNext()) {
 			Type type = types.next();
 			String typeURI = uimaToAlveoAnnConverter.getAlveoTypeUriForTypeName(type.getName());
-			urisToAnnTypes.put(typeURI, type);
+			map.put(typeURI, type);
 		}
+		return Collections.unmodifiableMap(map);
 	}
 
-	private void storeSourceDoc(TextDocument td, CAS view) throws CASException {
-		view.setSofaDataString(td.rawText(), "text/plain");
+	private void storeSourceDoc(FetchedItem.FetchedDocument fd, CAS view) throws CASException {
+		if (fd.getContent() == FetchedItem.FetchedDocument.Content.BY_REFERENCE)
+			view.setSofaDataURI(fd.getDataUrl(), "text/plain"); // too large to hold in the CAS
+		else
+			view.setSofaDataString(fd.getRawText(), "text/plain");
 		VLabDocSource vlds = new VLabDocSource(view.getJCas());
 		vlds.setServerBase(serverBaseUrl);
-		vlds.setRawTextUrl(td.getDataUrl());
-		try {
-			vlds.setDocType(td.getType());
-		} catch (UnknownValueException e) {
-			throw new CASException(e);
-		}
+		vlds.setRawTextUrl(fd.getDataUrl());
+		vlds.setDocType(fd.getDocType());
 		vlds.addToIndexes();
 	}
 
-	private void storeMainItem(Item item, CAS mainView) throws CASException {
-		mainView.setSofaDataString(item.primaryText(), "text/plain");
+	private void storeMainItem(FetchedItem item, CAS mainView, TextWindow window) throws CASException {
+		String text = item.getPrimaryText();
+		if (window != null) {
+			text = text.substring(window.getBegin(), window.getEnd());
+			ItemWindow iw = new ItemWindow(mainView.getJCas());
+			iw.setItemOffset(window.getBegin());
+			iw.setItemLength(item.getPrimaryText().length());
+			iw.setCoreBegin(window.getCoreBegin());
+			iw.setCoreEnd(window.getCoreEnd());
+			iw.setWindowIndex(window.getIndex());
+			iw.setWindowCount(window.getCount());
+			iw.addToIndexes();
+		}
+		mainView.setSofaDataString(text, "text/plain");
 		AlveoItemSource vlis = new AlveoItemSource(mainView.getJCas());
 		vlis.setSourceUri(item.getUri());
 		vlis.setServerBase(serverBaseUrl);
 		storeMetadata(item, vlis);
-		if (includeAnnotations)
-			storeAnnotations(item, vlis);
+		if (includeAnnotations && item.hasAnnotations())
+			storeAnnotations(item, vlis, window);
 		vlis.addToIndexes();
 	}
 
-	private void storeMetadata(Item item, AnnotationFS vlabItemSrc) throws CASException {
+	private void storeMetadata(FetchedItem item, AnnotationFS vlabItemSrc) throws CASException {
 		Map<String, String> orig = item.getMetadata();
 
 		ItemMetadata metadata = new ItemMetadata(vlabItemSrc.getCAS().getJCas());
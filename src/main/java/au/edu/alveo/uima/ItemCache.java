@@ -0,0 +1,318 @@
+package au.edu.alveo.uima;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A persistent on-disk cache of items retrieved from the Alveo server, keyed by item URI.
+ *
+ * Each item is stored in its own gzipped binary file, containing the primary text, the metadata,
+ * and (if they were fetched) the text annotations and raw source documents. The total size of the
+ * cache directory is bounded; when it grows beyond the limit, the least recently used entries
+ * are deleted. Recency survives across runs since it is tracked using file modification times.
+ *
+ * Instances are shared per directory (see {@link #forDirectory(java.io.File, long)}) and are
+ * safe to use from multiple threads.
+ */
+class ItemCache {
+	private static final Logger LOG = LoggerFactory.getLogger(ItemCache.class);
+	private static final int FORMAT_VERSION = 3;
+	private static final String SUFFIX = ".item.gz";
+	private static final Map<File, ItemCache> INSTANCES = new HashMap<File, ItemCache>();
+
+	private final File directory;
+	private final long maxBytes;
+	/** Sizes of the cache entries, in least-recently-used order */
+	private final LinkedHashMap<String, Long> entrySizes = new LinkedHashMap<String, Long>(64, 0.75f, true);
+	private long totalBytes = 0;
+
+	/** Get the cache instance for the supplied directory, creating it if necessary.
+	 *
+	 * @param directory The directory where cache entries are stored
+	 * @param maxBytes The maximum total size of the cache entries, or a non-positive value for no limit.
+	 *                 This is ignored if there is already an instance for the directory
+	 */
+	public static synchronized ItemCache forDirectory(File directory, long maxBytes) throws IOException {
+		File canonical = directory.getCanonicalFile();
+		ItemCache cache = INSTANCES.get(canonical);
+		if (cache == null) {
+			cache = new ItemCache(canonical, maxBytes);
+			INSTANCES.put(canonical, cache);
+		} else if (cache.maxBytes != maxBytes) {
+			LOG.warn("Item cache at {} is already open with a limit of {} bytes; ignoring new limit of {}",
+					canonical, cache.maxBytes, maxBytes);
+		}
+		return cache;
+	}
+
+	private ItemCache(File directory, long maxBytes) throws IOException {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create cache directory " + directory);
+		loadIndex();
+	}
+
+	private void loadIndex() {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		for (File f : files) {
+			String name = f.getName();
+			if (!name.endsWith(SUFFIX))
+				continue;
+			String key = name.substring(0, name.length() - SUFFIX.length());
+			entrySizes.put(key, f.length());
+			totalBytes += f.length();
+		}
+	}
+
+	/** Look up an item in the cache.
+	 *
+	 * @param itemUri The URI of the item
+	 * @param needAnnotations If true, entries which were stored without annotations are treated as misses
+	 * @param needDocuments If true, entries which were stored without raw documents are treated as misses
+	 * @return the cached item, or <code>null</code> if there is no suitable entry
+	 */
+	public FetchedItem get(String itemUri, boolean needAnnotations, boolean needDocuments) {
+		String key = keyFor(itemUri);
+		File file;
+		synchronized (this) {
+			if (entrySizes.get(key) == null) // also updates the access order
+				return null;
+			file = fileFor(key);
+		}
+		FetchedItem item;
+		try {
+			item = read(file);
+		} catch (IOException e) {
+			LOG.warn("Discarding unreadable cache entry {} for {}: {}", file, itemUri, e.getMessage());
+			remove(itemUri);
+			return null;
+		}
+		if (!itemUri.equals(item.getUri()))
+			return null;
+		if ((needAnnotations && !item.hasAnnotations()) || (needDocuments && !item.hasDocuments()))
+			return null;
+		file.setLastModified(System.currentTimeMillis());
+		return item;
+	}
+
+	/** Store an item in the cache, replacing any existing entry for the same URI */
+	public void put(FetchedItem item) {
+		String key = keyFor(item.getUri());
+		File file = fileFor(key);
+		File tmp;
+		try {
+			tmp = File.createTempFile(key, ".tmp", directory);
+			write(item, tmp);
+		} catch (IOException e) {
+			LOG.warn("Unable to write cache entry for {}: {}", item.getUri(), e.getMessage());
+			return;
+		}
+		synchronized (this) {
+			try {
+				// readers (possibly in other processes) see either the old entry or the new one, never neither
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				tmp.delete();
+				LOG.warn("Unable to move cache entry into place at {}: {}", file, e.getMessage());
+				return;
+			}
+			Long oldSize = entrySizes.put(key, file.length());
+			if (oldSize != null)
+				totalBytes -= oldSize;
+			totalBytes += file.length();
+			evictIfNecessary();
+		}
+	}
+
+	/** Remove any entry for the item from the cache, for instance because it is known to be out of date */
+	public synchronized void remove(String itemUri) {
+		String key = keyFor(itemUri);
+		Long size = entrySizes.remove(key);
+		if (size != null) {
+			totalBytes -= size;
+			fileFor(key).delete();
+		}
+	}
+
+	private void evictIfNecessary() {
+		if (maxBytes <= 0)
+			return;
+		Iterator<Map.Entry<String, Long>> entries = entrySizes.entrySet().iterator();
+		// never evict the most recent entry, even if it is larger than the limit on its own
+		while (totalBytes > maxBytes && entrySizes.size() > 1) {
+			Map.Entry<String, Long> eldest = entries.next();
+			fileFor(eldest.getKey()).delete();
+			totalBytes -= eldest.getValue();
+			entries.remove();
+		}
+	}
+
+	private File fileFor(String key) {
+		return new File(directory, key + SUFFIX);
+	}
+
+	private static String keyFor(String itemUri) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(itemUri.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest)
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void write(FetchedItem item, File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new GZIPOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file))));
+		try {
+			out.writeInt(FORMAT_VERSION);
+			writeString(out, item.getUri());
+			writeString(out, item.getPrimaryText());
+			Map<String, String> metadata = item.getMetadata();
+			out.writeInt(metadata.size());
+			for (Map.Entry<String, String> entry : metadata.entrySet()) {
+				writeString(out, entry.getKey());
+				writeString(out, entry.getValue());
+			}
+			out.writeBoolean(item.hasAnnotations());
+			if (item.hasAnnotations()) {
+				// annotation types are highly repetitive, so store each one once and refer to it by index
+				List<FetchedItem.FetchedAnnotation> anns = item.getAnnotations();
+				Map<String, Integer> typeIds = new LinkedHashMap<String, Integer>();
+				for (FetchedItem.FetchedAnnotation ann : anns) {
+					if (!typeIds.containsKey(ann.getType()))
+						typeIds.put(ann.getType(), typeIds.size());
+				}
+				out.writeInt(typeIds.size());
+				for (String type : typeIds.keySet())
+					writeString(out, type);
+				out.writeInt(anns.size());
+				for (FetchedItem.FetchedAnnotation ann : anns) {
+					out.writeInt(typeIds.get(ann.getType()));
+					writeString(out, ann.getLabel());
+					out.writeInt(ann.getStart());
+					out.writeInt(ann.getEnd());
+				}
+			}
+			out.writeBoolean(item.hasDocuments());
+			if (item.hasDocuments()) {
+				out.writeInt(item.getDocuments().size());
+				for (FetchedItem.FetchedDocument doc : item.getDocuments()) {
+					writeString(out, doc.getDocType());
+					writeString(out, doc.getDataUrl());
+					out.writeByte(doc.getContent().ordinal());
+					out.writeLong(doc.getMaxBytes());
+					writeString(out, doc.getRawText());
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static FetchedItem read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new GZIPInputStream(
+				new BufferedInputStream(new FileInputStream(file))));
+		try {
+			int version = in.readInt();
+			if (version != FORMAT_VERSION)
+				throw new IOException("Unsupported cache format version " + version);
+			String uri = readString(in);
+			String primaryText = readString(in);
+			int numMetadata = in.readInt();
+			Map<String, String> metadata = new HashMap<String, String>(numMetadata * 2);
+			for (int i = 0; i < numMetadata; i++)
+				metadata.put(readString(in), readString(in));
+			List<FetchedItem.FetchedAnnotation> anns = null;
+			if (in.readBoolean()) {
+				String[] types = new String[in.readInt()];
+				for (int i = 0; i < types.length; i++)
+					types[i] = readString(in);
+				int numAnns = in.readInt();
+				anns = new ArrayList<FetchedItem.FetchedAnnotation>(numAnns);
+				for (int i = 0; i < numAnns; i++) {
+					String type = types[in.readInt()];
+					String label = readString(in);
+					int start = in.readInt();
+					int end = in.readInt();
+					anns.add(new FetchedItem.FetchedAnnotation(type, label, start, end));
+				}
+			}
+			List<FetchedItem.FetchedDocument> docs = null;
+			if (in.readBoolean()) {
+				int numDocs = in.readInt();
+				docs = new ArrayList<FetchedItem.FetchedDocument>(numDocs);
+				for (int i = 0; i < numDocs; i++) {
+					String docType = readString(in);
+					String dataUrl = readString(in);
+					FetchedItem.FetchedDocument.Content content = FetchedItem.FetchedDocument.Content.values()[in.readByte()];
+					long maxBytes = in.readLong();
+					docs.add(new FetchedItem.FetchedDocument(docType, dataUrl, readString(in), content, maxBytes));
+				}
+			}
+			return new FetchedItem(uri, primaryText, metadata, anns, docs);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Write a nullable string; unlike {@link DataOutputStream#writeUTF(String)} there is no length limit */
+	/** Write a string of any length, or <code>null</code> */
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
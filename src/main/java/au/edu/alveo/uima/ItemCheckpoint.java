@@ -0,0 +1,184 @@
+package au.edu.alveo.uima;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A durable record of which items have been completely processed by a pipeline, so that
+ * a pipeline which was interrupted can be restarted without reprocessing those items.
+ *
+ * The record is an append-only log of item URIs, one per line, in the checkpoint directory.
+ * Items are marked as processed in memory by {@link #markProcessed(String)}, and the pending
+ * URIs are appended and synced to disk by {@link #flush()}. A line is only treated as
+ * valid once its terminating newline has been written, so a crash part-way through a flush
+ * can lose at most the items from that flush, which are then simply processed again.
+ * Items whose annotations are still waiting to be uploaded in the background (see
+ * {@link OutstandingUploads}) are held back from the log until the upload has succeeded.
+ *
+ * Instances are shared per directory (see {@link #forDirectory(java.io.File)}) so that the
+ * collection reader and any replicated consumers in the same JVM use the same log. Once the
+ * reader has output every item and the collection has been processed, the log is cleared (see
+ * {@link #clearIfComplete()}), so a checkpoint only ever covers a single incomplete run.
+ */
+class ItemCheckpoint {
+	private static final Logger LOG = LoggerFactory.getLogger(ItemCheckpoint.class);
+	private static final String LOG_FILE_NAME = "processed-items.log";
+	private static final Map<File, ItemCheckpoint> INSTANCES = new HashMap<File, ItemCheckpoint>();
+
+	private final File logFile;
+	private final Set<String> processed = new HashSet<String>();
+	private final List<String> unflushed = new ArrayList<String>();
+	/** The windows processed so far for items divided into windows which are not yet completely processed */
+	private final Map<String, BitSet> processedWindows = new HashMap<String, BitSet>();
+	private boolean terminateTornLine = false;
+	private boolean allItemsRead = false;
+
+	public static synchronized ItemCheckpoint forDirectory(File directory) throws IOException {
+		File canonical = directory.getCanonicalFile();
+		ItemCheckpoint checkpoint = INSTANCES.get(canonical);
+		if (checkpoint == null) {
+			checkpoint = new ItemCheckpoint(canonical);
+			INSTANCES.put(canonical, checkpoint);
+		}
+		return checkpoint;
+	}
+
+	private ItemCheckpoint(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create checkpoint directory " + directory);
+		logFile = new File(directory, LOG_FILE_NAME);
+		if (logFile.exists())
+			load();
+	}
+
+	private void load() throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), "UTF-8"));
+		try {
+			StringBuilder line = new StringBuilder();
+			int c;
+			while ((c = reader.read()) != -1) {
+				if (c == '\n') {
+					if (line.length() > 0)
+						processed.add(line.toString());
+					line.setLength(0);
+				} else {
+					line.append((char) c);
+				}
+			}
+			if (line.length() > 0) { // no newline, so the write was interrupted
+				LOG.warn("Ignoring incomplete final entry in checkpoint log {}", logFile);
+				terminateTornLine = true;
+			}
+		} finally {
+			reader.close();
+		}
+		LOG.info("Checkpoint log {} lists {} processed items", logFile, processed.size());
+	}
+
+	/** Returns whether the item was recorded as processed, either in a previous run or in this one */
+	public synchronized boolean isProcessed(String itemUri) {
+		return processed.contains(itemUri);
+	}
+
+	/** Mark an item as processed. This is not durable until {@link #flush()} is called */
+	public synchronized void markProcessed(String itemUri) {
+		if (processed.add(itemUri))
+			unflushed.add(itemUri);
+	}
+
+	/** Record that one window of an item divided into windows has been processed, and mark the item
+	 * as processed once all of its windows have been. Windows can be recorded in any order, and
+	 * an item with a window which is never recorded (because processing it failed) is never marked.
+	 *
+	 * @return whether the item is now marked as processed
+	 */
+	public synchronized boolean markWindowProcessed(String itemUri, int windowIndex, int windowCount) {
+		if (windowCount <= 1) {
+			markProcessed(itemUri);
+			return true;
+		}
+		BitSet windows = processedWindows.get(itemUri);
+		if (windows == null) {
+			windows = new BitSet(windowCount);
+			processedWindows.put(itemUri, windows);
+		}
+		windows.set(windowIndex);
+		if (windows.cardinality() < windowCount)
+			return false;
+		processedWindows.remove(itemUri);
+		markProcessed(itemUri);
+		return true;
+	}
+
+	/** Returns the number of items which have been marked as processed but not yet flushed */
+	public synchronized int getUnflushedCount() {
+		return unflushed.size();
+	}
+
+	/** Record that the collection reader has output every item which was not already processed */
+	public synchronized void markAllItemsRead() {
+		allItemsRead = true;
+	}
+
+	/** If the collection reader has output every item, delete the log and forget every item, so
+	 * that the next run with this directory processes the whole collection again.
+	 *
+	 * @return whether the checkpoint was cleared
+	 */
+	public synchronized boolean clearIfComplete() throws IOException {
+		if (!allItemsRead)
+			return false;
+		if (logFile.exists() && !logFile.delete())
+			throw new IOException("Unable to delete checkpoint log " + logFile);
+		LOG.info("Cleared checkpoint log {} after processing the collection", logFile);
+		processed.clear();
+		unflushed.clear();
+		processedWindows.clear();
+		terminateTornLine = false;
+		allItemsRead = false;
+		return true;
+	}
+
+	/** Append any newly-processed items whose annotations are not waiting to be uploaded to the log,
+	 * and sync it to disk */
+	public synchronized void flush() throws IOException {
+		List<String> held = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+		for (String uri : unflushed) {
+			if (OutstandingUploads.isOutstanding(uri)) {
+				held.add(uri);
+				continue;
+			}
+			sb.append(uri);
+			sb.append('\n');
+		}
+		if (sb.length() > 0) {
+			if (terminateTornLine) // keep the fragment from running into the first new entry
+				sb.insert(0, '\n');
+			FileOutputStream out = new FileOutputStream(logFile, true);
+			try {
+				out.write(sb.toString().getBytes("UTF-8"));
+				out.getChannel().force(true);
+			} finally {
+				out.close();
+			}
+			terminateTornLine = false;
+		}
+		unflushed.clear();
+		unflushed.addAll(held);
+	}
+}
@@ -0,0 +1,118 @@
+package au.edu.alveo.uima;
+
+import au.edu.alveo.uima.types.AlveoItemSource;
+import au.edu.alveo.uima.types.ItemWindow;
+import org.apache.uima.UimaContext;
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.CASException;
+import org.apache.uima.fit.component.CasConsumer_ImplBase;
+import org.apache.uima.fit.descriptor.ConfigurationParameter;
+import org.apache.uima.fit.descriptor.OperationalProperties;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.resource.ResourceInitializationException;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A UIMA component which records that items have been completely processed, so that
+ * {@link ItemListCollectionReader} can skip them when a pipeline is restarted.
+ *
+ * This should be the last component in the pipeline, so that an item is only recorded once
+ * every other component (such as {@link ItemAnnotationUploader}) has finished with it. Items whose
+ * annotations the uploader is still sending in the background are only made durable once the upload
+ * has succeeded.
+ * The checkpoint is made durable every <code>checkpointInterval</code> items and at the end of
+ * each batch; supply the same checkpoint directory to the collection reader. When the whole
+ * collection has been processed the checkpoint is cleared, so that running the pipeline again
+ * processes every item rather than skipping them all.
+ *
+ * If the collection reader uses a change manifest, supply it here too. The fingerprint of each
+ * changed item is then only recorded once the item has been completely processed, and the manifest
+ * is saved once the whole collection has been processed.
+ */
+@OperationalProperties(modifiesCas = false)
+public class ItemCheckpointWriter extends CasConsumer_ImplBase {
+	public static final String PARAM_CHECKPOINT_DIR = "checkpointDir";
+	public static final String PARAM_CHECKPOINT_INTERVAL = "checkpointInterval";
+	public static final String PARAM_CHANGE_MANIFEST = "changeManifest";
+
+	@ConfigurationParameter(name = PARAM_CHECKPOINT_DIR, mandatory = true,
+			description = "Directory where the record of processed items is stored")
+	private File checkpointDir;
+
+	@ConfigurationParameter(name = PARAM_CHECKPOINT_INTERVAL, mandatory = false,
+			description = "Maximum number of processed items which are recorded before the checkpoint is " +
+					"written to disk; this is the most which would need to be reprocessed after a crash")
+	private int checkpointInterval = 100;
+
+	@ConfigurationParameter(name = PARAM_CHANGE_MANIFEST, mandatory = false,
+			description = "The change manifest used by the collection reader, if any")
+	private File changeManifest = null;
+
+	private ItemCheckpoint checkpoint;
+	private ItemManifest manifest = null;
+
+	@Override
+	public void initialize(UimaContext context) throws ResourceInitializationException {
+		super.initialize(context);
+		try {
+			checkpoint = ItemCheckpoint.forDirectory(checkpointDir);
+			if (changeManifest != null)
+				manifest = ItemManifest.forFile(changeManifest);
+		} catch (IOException e) {
+			throw new ResourceInitializationException(e);
+		}
+	}
+
+	@Override
+	public void process(CAS aCAS) throws AnalysisEngineProcessException {
+		String itemUri;
+		ItemWindow window = null;
+		try {
+			itemUri = JCasUtil.selectSingle(aCAS.getJCas(), AlveoItemSource.class).getSourceUri();
+			for (ItemWindow w : JCasUtil.select(aCAS.getJCas(), ItemWindow.class))
+				window = w;
+		} catch (CASException e) {
+			throw new AnalysisEngineProcessException(e);
+		}
+		// an item divided into windows is only processed once all of its windows are, which may
+		// not be in order if the pipeline has several processing threads
+		if (window == null)
+			checkpoint.markProcessed(itemUri);
+		else if (!checkpoint.markWindowProcessed(itemUri, window.getWindowIndex(), window.getWindowCount()))
+			return;
+		if (manifest != null)
+			manifest.markProcessed(itemUri);
+		if (checkpoint.getUnflushedCount() >= checkpointInterval)
+			flush();
+	}
+
+	@Override
+	public void batchProcessComplete() throws AnalysisEngineProcessException {
+		super.batchProcessComplete();
+		flush();
+	}
+
+	@Override
+	public void collectionProcessComplete() throws AnalysisEngineProcessException {
+		super.collectionProcessComplete();
+		flush();
+		try {
+			if (manifest != null)
+				manifest.saveIfComplete();
+			checkpoint.clearIfComplete();
+		} catch (IOException e) {
+			throw new AnalysisEngineProcessException(e);
+		}
+	}
+
+	private void flush() throws AnalysisEngineProcessException {
+		try {
+			checkpoint.flush();
+		} catch (IOException e) {
+			throw new AnalysisEngineProcessException(e);
+		}
+	}
+}
@@ -6,15 +6,19 @@ package au.edu.alveo.uima;
 import au.edu.alveo.client.entity.AlveoException;
 import au.edu.alveo.uima.conversions.FallingBackUIMAAlveoConverter;
 import au.edu.alveo.uima.conversions.UIMAToAlveoAnnConverter;
+import au.edu.alveo.uima.metrics.Meter;
+import au.edu.alveo.uima.metrics.MetricsRegistry;
 import au.edu.alveo.client.RestClient;
 import au.edu.alveo.client.entity.EntityNotFoundException;
 import au.edu.alveo.client.entity.InvalidServerAddressException;
 import au.edu.alveo.client.entity.Item;
 import au.edu.alveo.client.entity.ItemList;
 import au.edu.alveo.client.entity.UnauthorizedAPIKeyException;
+import com.google.common.base.Predicate;
 import org.apache.uima.UimaContext;
 import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.CASException;
+import org.apache.uima.cas.TypeSystem;
 import org.apache.uima.collection.CollectionException;
 import org.apache.uima.collection.CollectionReaderDescription;
 import org.apache.uima.fit.component.CasCollectionReader_ImplBase;
@@ -31,14 +35,22 @@ import org.openrdf.OpenRDFException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.zip.CRC32;
 
 import static org.apache.uima.fit.factory.ConfigurationParameterFactory.ConfigurationData;
 
@@ -56,18 +68,52 @@ import static org.apache.uima.fit.factory.ConfigurationParameterFactory.Configur
 })
 public class ItemListCollectionReader extends CasCollectionReader_ImplBase {
 	private static final Logger LOG = LoggerFactory.getLogger(ItemListCollectionReader.class);
+	private static final Meter ITEMS_READ = MetricsRegistry.meter("reader.items");
+	private static final Meter CHARS_READ = MetricsRegistry.meter("reader.chars");
 
 	public static final String PARAM_ALVEO_BASE_URL = "alveoBaseUrl";
 	public static final String PARAM_ALVEO_ITEM_LIST_ID = "itemListId";
+	public static final String PARAM_ALVEO_ITEM_LIST_IDS = "itemListIds";
 	public static final String PARAM_ALVEO_API_KEY = "alveoApiKey";
 	public static final String PARAM_INCLUDE_RAW_DOCS = "includeRawDocs";
 	public static final String PARAM_INCLUDE_ANNOTATIONS = "includeAnnotations";
 	public static final String PARAM_ANNOTATION_CONVERTERS = "annotationConverters";
+	public static final String PARAM_PREFETCH_THREADS = "prefetchThreads";
+	public static final String PARAM_PREFETCH_DEPTH = "prefetchDepth";
+	public static final String PARAM_ITEM_CACHE_DIR = "itemCacheDir";
+	public static final String PARAM_ITEM_CACHE_MAX_MB = "itemCacheMaxMB";
+	public static final String PARAM_CHANGE_MANIFEST = "changeManifest";
+	public static final String PARAM_CHANGE_MANIFEST_IGNORED_TYPES = "changeManifestIgnoredTypes";
+	public static final String PARAM_CHECKPOINT_DIR = "checkpointDir";
+	public static final String PARAM_SHARD_INDEX = "shardIndex";
+	public static final String PARAM_SHARD_COUNT = "shardCount";
+	public static final String PARAM_RAW_DOC_TYPES = "rawDocTypes";
+	public static final String PARAM_MAX_RAW_DOC_KB = "maxRawDocKB";
+	public static final String PARAM_INCLUDE_ANNOTATION_TYPES = "includeAnnotationTypes";
+	public static final String PARAM_EXCLUDE_ANNOTATION_TYPES = "excludeAnnotationTypes";
+	public static final String PARAM_CAS_CACHE_DIR = "casCacheDir";
+	public static final String PARAM_BULK_ANNOTATION_FETCH = "bulkAnnotationFetch";
+	public static final String PARAM_BULK_ANNOTATION_BATCH_SIZE = "bulkAnnotationBatchSize";
+	public static final String PARAM_WINDOW_SIZE = "windowSize";
+	public static final String PARAM_WINDOW_OVERLAP = "windowOverlap";
+	public static final String PARAM_WINDOW_ALIGNMENT_TYPE = "windowAlignmentType";
+	public static final String PARAM_METRICS_FILE = "metricsFile";
+	public static final String PARAM_METRICS_INTERVAL_SECS = "metricsIntervalSecs";
+	public static final String PARAM_TYPE_DISCOVERY_THREADS = "typeDiscoveryThreads";
+	public static final String PARAM_TYPE_DISCOVERY_TIMEOUT_SECS = "typeDiscoveryTimeoutSecs";
 
-	@ConfigurationParameter(name = PARAM_ALVEO_ITEM_LIST_ID, mandatory = true, description = "Item ID which should be retrieved and converted into a "
+	private static final int DEFAULT_TYPE_DISCOVERY_THREADS = 8;
+	private static final int DEFAULT_TYPE_DISCOVERY_TIMEOUT_SECS = 0;
+
+	@ConfigurationParameter(name = PARAM_ALVEO_ITEM_LIST_ID, mandatory = false, description = "Item ID which should be retrieved and converted into a "
 			+ "set of UIMA CAS documents")
 	private String itemListId;
 
+	@ConfigurationParameter(name = PARAM_ALVEO_ITEM_LIST_IDS, mandatory = false,
+			description = "IDs of further item lists to read, in addition to (or instead of) " + PARAM_ALVEO_ITEM_LIST_ID
+					+ ". The lists are merged in order and items which appear in more than one list are only output once")
+	private String[] itemListIds = new String[] {};
+
 	@ConfigurationParameter(name = PARAM_ALVEO_BASE_URL, mandatory = true,
 			description = "Base URL for the Alveo REST/JSON API server "
 			+ "- eg http://vlab.example.org/ ; the URL for the item list "
@@ -79,10 +125,43 @@ public class ItemListCollectionReader extends CasCollectionReader_ImplBase {
 
 	@ConfigurationParameter(name = PARAM_INCLUDE_RAW_DOCS, mandatory = false, description = "Include raw document sources as separate SofAs")
 	private boolean includeRawDocs = false;
+
+	@ConfigurationParameter(name = PARAM_RAW_DOC_TYPES, mandatory = false,
+			description = "If set, only raw documents with these document types are included as separate SofAs " +
+					"when raw documents are included")
+	private String[] rawDocTypes = null;
+
+	@ConfigurationParameter(name = PARAM_MAX_RAW_DOC_KB, mandatory = false,
+			description = "If greater than zero, raw documents larger than this many kilobytes are not retrieved; " +
+					"retrieval stops as soon as a document passes the limit, even if the server does not report its size. " +
+					"The SofA of their view is instead set to the document URL (also available from " +
+					"au.edu.alveo.uima.types.VLabDocSource:rawTextUrl), so components which need the " +
+					"content can retrieve it on demand")
+	private int maxRawDocKB = 0;
 	
 	@ConfigurationParameter(name = PARAM_INCLUDE_ANNOTATIONS, mandatory = false, description = "Include textual annotations when they are present")
 	private boolean includeAnnotations = true;
 
+	@ConfigurationParameter(name = PARAM_INCLUDE_ANNOTATION_TYPES, mandatory = false,
+			description = "If set, only annotations matching these types are added to the CAS. Each entry is either " +
+					"an Alveo annotation type URI, or a UIMA type name which also matches its subtypes")
+	private String[] includeAnnotationTypes = null;
+
+	@ConfigurationParameter(name = PARAM_EXCLUDE_ANNOTATION_TYPES, mandatory = false,
+			description = "Annotations matching these types (Alveo annotation type URIs or UIMA type names) " +
+					"are not added to the CAS")
+	private String[] excludeAnnotationTypes = null;
+
+	@ConfigurationParameter(name = PARAM_BULK_ANNOTATION_FETCH, mandatory = false,
+			description = "Retrieve the annotations for batches of items with one SPARQL query per corpus, " +
+					"instead of one request per item")
+	private boolean bulkAnnotationFetch = false;
+
+	@ConfigurationParameter(name = PARAM_BULK_ANNOTATION_BATCH_SIZE, mandatory = false,
+			description = "The number of items whose annotations are retrieved together when " +
+					PARAM_BULK_ANNOTATION_FETCH + " is set")
+	private int bulkAnnotationBatchSize = 500;
+
 	@ConfigurationParameter(name = PARAM_ANNOTATION_CONVERTERS, mandatory = false,
 			description = "Classes for converting UIMA annotations into Alveo annotations in preference to" +
 					"the default strategy of looking for label or annotation type features with appropriate names " +
@@ -90,13 +169,124 @@ public class ItemListCollectionReader extends CasCollectionReader_ImplBase {
 					"named here must implement au.edu.alveo.uima.conversions.UIMAToAlveoAnnConverter")
 	private String[] annotationConverterClasses = new String[] {};
 
+	@ConfigurationParameter(name = PARAM_PREFETCH_THREADS, mandatory = false,
+			description = "Number of background threads used to fetch items from the server ahead of when " +
+					"they are needed. If zero (the default), each item is fetched when it is requested")
+	private int prefetchThreads = 0;
+
+	@ConfigurationParameter(name = PARAM_PREFETCH_DEPTH, mandatory = false,
+			description = "Maximum number of items which will be fetched ahead of the current item " +
+					"when prefetching is enabled; this bounds the memory used by prefetched items")
+	private int prefetchDepth = 16;
+
+	@ConfigurationParameter(name = PARAM_ITEM_CACHE_DIR, mandatory = false,
+			description = "If set, a directory where items retrieved from the server are cached, so that " +
+					"subsequent runs over the same items can read them from disk instead of the server")
+	private File itemCacheDir = null;
+
+	@ConfigurationParameter(name = PARAM_ITEM_CACHE_MAX_MB, mandatory = false,
+			description = "Maximum size in megabytes of the item cache; the least recently used items " +
+					"are removed when it grows beyond this size. Zero or less means no limit")
+	private int itemCacheMaxMB = 1024;
+
+	@ConfigurationParameter(name = PARAM_CAS_CACHE_DIR, mandatory = false,
+			description = "If set, a directory where each CAS output by the reader is cached in compressed binary " +
+					"form. Subsequent runs with the same type system and reader settings read cached CASes " +
+					"directly instead of retrieving and converting the items. When a change manifest is used, " +
+					"items must be retrieved to detect changes, so the cache is only written to")
+	private File casCacheDir = null;
+
+	@ConfigurationParameter(name = PARAM_CHANGE_MANIFEST, mandatory = false,
+			description = "If set, a file recording a fingerprint of each item's primary text and annotations. " +
+					"Only items which are new or whose fingerprint has changed since the last complete run " +
+					"are output. The fingerprint of a changed item is only recorded once " +
+					"au.edu.alveo.uima.ItemCheckpointWriter (with the same change manifest) has seen it completely " +
+					"processed, and the writer updates the file once the whole collection has been processed. " +
+					"Note that changes are not detected for items which are read from the item cache")
+	private File changeManifest = null;
+
+	@ConfigurationParameter(name = PARAM_CHANGE_MANIFEST_IGNORED_TYPES, mandatory = false,
+			description = "Alveo annotation type URIs (recognised by containing ://) or UIMA type names of " +
+					"annotations which are left out of the change manifest fingerprints. These should include " +
+					"the types which the pipeline uploads, so that its own uploads do not make items look changed")
+	private String[] changeManifestIgnoredTypes = new String[] {};
+
+	@ConfigurationParameter(name = PARAM_CHECKPOINT_DIR, mandatory = false,
+			description = "If set, a directory where au.edu.alveo.uima.ItemCheckpointWriter (which should be the " +
+					"last component of the pipeline) records which items have been completely processed. " +
+					"Those items are skipped, so an interrupted pipeline can be restarted where it left off. " +
+					"The record is cleared once the whole collection has been processed")
+	private File checkpointDir = null;
+
+	@ConfigurationParameter(name = PARAM_SHARD_INDEX, mandatory = false,
+			description = "The index (from zero) of the shard of the item list which this reader outputs. " +
+					"Items are assigned to shards using a stable hash of the item URI, so independent " +
+					"readers with the same shard count and different indexes output disjoint sets of items")
+	private int shardIndex = 0;
 
-	private ItemList itemList;
-	private Iterator<? extends Item> itemsIter;
+	@ConfigurationParameter(name = PARAM_SHARD_COUNT, mandatory = false,
+			description = "The number of shards the item list is divided into; the default of 1 means " +
+					"every item is output. Each shard should use its own change manifest, if any")
+	private int shardCount = 1;
+
+	@ConfigurationParameter(name = PARAM_WINDOW_SIZE, mandatory = false,
+			description = "If greater than zero, items whose primary text is longer than this many characters are " +
+					"output as a sequence of CASes, each holding an overlapping window of the text and the " +
+					"annotations which lie within it. A window is widened beyond this size where an annotation " +
+					"which begins in it would otherwise run past its end. " +
+					"Each such CAS contains an au.edu.alveo.uima.types.ItemWindow " +
+					"recording where the window is in the item")
+	private int windowSize = 0;
+
+	@ConfigurationParameter(name = PARAM_WINDOW_OVERLAP, mandatory = false,
+			description = "The number of characters by which each window overlaps the next; must be less than " +
+					PARAM_WINDOW_SIZE)
+	private int windowOverlap = 1000;
+
+	@ConfigurationParameter(name = PARAM_WINDOW_ALIGNMENT_TYPE, mandatory = false,
+			description = "If set, an Alveo annotation type URI or UIMA type name (such as that of speaker turns); " +
+					"where possible, windows are divided at the start of an annotation of this type")
+	private String windowAlignmentType = null;
+
+	@ConfigurationParameter(name = PARAM_METRICS_FILE, mandatory = false,
+			description = "If set, throughput and latency metrics (which are always available over JMX) are " +
+					"also written to this file periodically, and when the reader is closed")
+	private File metricsFile = null;
+
+	@ConfigurationParameter(name = PARAM_METRICS_INTERVAL_SECS, mandatory = false,
+			description = "How often, in seconds, metrics are written to the metrics file")
+	private int metricsIntervalSecs = 60;
+
+	@ConfigurationParameter(name = PARAM_TYPE_DISCOVERY_THREADS, mandatory = false,
+			description = "Number of collections whose annotation types are queried at once when the type system " +
+					"is generated by createDescription")
+	private int typeDiscoveryThreads = DEFAULT_TYPE_DISCOVERY_THREADS;
+
+	@ConfigurationParameter(name = PARAM_TYPE_DISCOVERY_TIMEOUT_SECS, mandatory = false,
+			description = "Maximum time, in seconds, to wait for the annotation types of each collection when the " +
+					"type system is generated by createDescription. Collections which take longer are left out " +
+					"of the type system. Zero (the default) means no limit")
+	private int typeDiscoveryTimeoutSecs = DEFAULT_TYPE_DISCOVERY_TIMEOUT_SECS;
+
+	private ItemPrefetcher itemsIter;
 	private int itemsFetched;
+	private int itemsSkipped;
 	private int totalItems;
 	private ItemCASAdapter itemCASAdapter;
 	private UIMAToAlveoAnnConverter converter;
+	private ItemManifest manifest;
+	private Set<String> manifestIgnoredTypeUris;
+	private ItemCheckpoint checkpoint;
+	private CasCache casCache;
+	private TypeSystem casCacheTypeSystem;
+	private String casCacheFingerprint;
+	private Map<String, Item> itemsByUri; // to fetch items if a CAS cache entry turns out to be unusable
+	// in incremental mode, the next changed item (or the failure to fetch it) is found in advance
+	private FetchedItem pendingItem;
+	private CASException pendingError;
+	// the item currently being output one window at a time, and its remaining windows
+	private FetchedItem windowedItem;
+	private final LinkedList<TextWindow> pendingWindows = new LinkedList<TextWindow>();
 
 
 	/** Create a collection reader description corresponding to the provided configuration data.
@@ -132,6 +322,8 @@ public class ItemListCollectionReader extends CasCollectionReader_ImplBase {
 			throws ResourceInitializationException {
 		ConfigurationData confDataParsed = ConfigurationParameterFactory.createConfigurationData(confData);
 		String vlabUrl = null, vlabApiKey = null;
+		int typeDiscoveryThreads = DEFAULT_TYPE_DISCOVERY_THREADS;
+		int typeDiscoveryTimeoutSecs = DEFAULT_TYPE_DISCOVERY_TIMEOUT_SECS;
 		// since we don't yet have a reader, we need to semi-manually parse the params
 		for (int i = 0; i < confDataParsed.configurationParameters.length; i++) {
 			String paramName = confDataParsed.configurationParameters[i].getName();
@@ -140,13 +332,18 @@ public class ItemListCollectionReader extends CasCollectionReader_ImplBase {
 				vlabApiKey = (String) value;
 			else if (paramName.equals(PARAM_ALVEO_BASE_URL))
 				vlabUrl = (String) value;
+			else if (paramName.equals(PARAM_TYPE_DISCOVERY_THREADS))
+				typeDiscoveryThreads = (Integer) value;
+			else if (paramName.equals(PARAM_TYPE_DISCOVERY_TIMEOUT_SECS))
+				typeDiscoveryTimeoutSecs = (Integer) value;
 		}
 		if (vlabApiKey == null || vlabUrl == null)
 			throw new ResourceInitializationException(ResourceInitializationException.CONFIG_SETTING_ABSENT,
 					new Object[] {PARAM_ALVEO_API_KEY + ", " + PARAM_ALVEO_BASE_URL + ", " + PARAM_ALVEO_ITEM_LIST_ID});
 		TypeSystemDescription tsd;
 		try {
-			tsd = ItemListCollectionReader.getTypeSystemDescription(vlabUrl, vlabApiKey, externalTypeSystem);
+			tsd = ItemListCollectionReader.getTypeSystemDescription(vlabUrl, vlabApiKey, externalTypeSystem,
+					typeDiscoveryThreads, typeDiscoveryTimeoutSecs);
 		} catch (Exception e) {
 			throw new ResourceInitializationException(e);
 		}
@@ -157,11 +354,25 @@ public class ItemListCollectionReader extends CasCollectionReader_ImplBase {
 	protected static TypeSystemDescription getTypeSystemDescription(String vlabUrl, String vlabApiKey,
 			TypeSystemDescription extTypeSystem)
 			throws UnauthorizedAPIKeyException, EntityNotFoundException,
-			InvalidServerAddressException, ResourceInitializationException, URISyntaxException, OpenRDFException {
+			InvalidServerAddressException, ResourceInitializationException, URISyntaxException, OpenRDFException,
+			InterruptedException {
+		return getTypeSystemDescription(vlabUrl, vlabApiKey, extTypeSystem,
+				DEFAULT_TYPE_DISCOVERY_THREADS, DEFAULT_TYPE_DISCOVERY_TIMEOUT_SECS);
+	}
+
+	/** Generate the type system, querying the server for the annotation types of up to <code>numThreads</code>
+	 * collections at once
+	 *
+	 * @param timeoutSecs The maximum time to wait for the types of each collection, or zero for no limit
+	 */
+	protected static TypeSystemDescription getTypeSystemDescription(String vlabUrl, String vlabApiKey,
+			TypeSystemDescription extTypeSystem, int numThreads, int timeoutSecs)
+			throws UnauthorizedAPIKeyException, EntityNotFoundException,
+			InvalidServerAddressException, ResourceInitializationException, URISyntaxException, OpenRDFException,
+			InterruptedException {
 		RestClient client = new RestClient(vlabUrl, vlabApiKey);
 		TypeSystemAutoAugmenter tsag = new TypeSystemAutoAugmenter(client, extTypeSystem);
-		for (String corpusName : getCorpusNames())
-			tsag.addCorpus(corpusName);
+		tsag.addCorpora(getCorpusNames(), numThreads, timeoutSecs);
 		return tsag.getTypeSystemDescription();
 	}
 
@@ -200,11 +411,25 @@ public class ItemListCollectionReader extends CasCollectionReader_ImplBase {
 
 	@Override
 	public void initialize(UimaContext context) throws ResourceInitializationException {
+		if (itemListId == null && itemListIds.length == 0)
+			throw new ResourceInitializationException(ResourceInitializationException.CONFIG_SETTING_ABSENT,
+					new Object[] {PARAM_ALVEO_ITEM_LIST_ID + " or " + PARAM_ALVEO_ITEM_LIST_IDS});
+		if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount)
+			throw new ResourceInitializationException(new IllegalArgumentException(String.format(
+					"Invalid shard index %d for shard count %d", shardIndex, shardCount)));
+		if (windowSize > 0 && (windowOverlap < 0 || windowOverlap >= windowSize))
+			throw new ResourceInitializationException(new IllegalArgumentException(String.format(
+					"Invalid window overlap %d for window size %d", windowOverlap, windowSize)));
+		if (metricsFile != null)
+			MetricsRegistry.startFileReporter(metricsFile, metricsIntervalSecs);
 		try {
 			List<UIMAToAlveoAnnConverter> componentConverters = new ArrayList<UIMAToAlveoAnnConverter>(annotationConverterClasses.length + 1);
 			for (String accName : annotationConverterClasses)
 				componentConverters.add(getConverterInstance(accName));
 			converter = FallingBackUIMAAlveoConverter.withDefault(componentConverters);
+			manifestIgnoredTypeUris = new HashSet<String>();
+			for (String type : changeManifestIgnoredTypes)
+				manifestIgnoredTypeUris.add(type.contains("://") ? type : converter.getAlveoTypeUriForTypeName(type));
 			fetchItemList();
 		} catch (AlveoException e) {
 			throw new ResourceInitializationException(e);
@@ -214,6 +439,8 @@ public class ItemListCollectionReader extends CasCollectionReader_ImplBase {
 			throw new ResourceInitializationException(e);
 		} catch (IllegalAccessException e) {
 			throw new ResourceInitializationException(e);
+		} catch (IOException e) {
+			throw new ResourceInitializationException(e);
 		}
 	}
 
@@ -224,18 +451,94 @@ public class ItemListCollectionReader extends CasCollectionReader_ImplBase {
 		return (UIMAToAlveoAnnConverter) convClass.newInstance();
 	}
 
-	private void fetchItemList() throws AlveoException {
+	private void fetchItemList() throws AlveoException, IOException {
 		RestClient client = new RestClient(baseUrl.toString(), apiKey);
-		try {
-			itemList = client.getItemList(itemListId);
-		} catch (Exception e) {
-			throw new RuntimeException(e);
+		List<String> listIds = new ArrayList<String>();
+		if (itemListId != null)
+			listIds.add(itemListId);
+		listIds.addAll(Arrays.asList(itemListIds));
+		// merge the catalogs, keeping the first occurrence of any item which is in several lists
+		Map<String, Item> catalog = new LinkedHashMap<String, Item>();
+		int numListed = 0;
+		for (String listId : listIds) {
+			ItemList itemList;
+			try {
+				itemList = client.getItemList(listId);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+			for (Item item : itemList.getCatalogItems()) {
+				++numListed;
+				if (!catalog.containsKey(item.getUri()))
+					catalog.put(item.getUri(), item);
+			}
 		}
-		itemsIter = itemList.getCatalogItems().listIterator();
+		if (listIds.size() > 1)
+			LOG.info("Merged {} item lists containing {} distinct items out of {} listed",
+					listIds.size(), catalog.size(), numListed);
 		itemsFetched = 0;
-		totalItems = itemList.numItems();
+		itemsSkipped = 0;
+		if (changeManifest != null)
+			manifest = ItemManifest.forFile(changeManifest);
+		List<Item> items = selectItems(new ArrayList<Item>(catalog.values()));
+		if (casCacheDir != null) {
+			casCache = new CasCache(casCacheDir);
+			itemsByUri = catalog;
+		}
+		totalItems = items.size() + itemsSkipped;
+		ItemCache itemCache = null;
+		if (itemCacheDir != null)
+			itemCache = ItemCache.forDirectory(itemCacheDir, itemCacheMaxMB * 1024L * 1024L);
 		itemCASAdapter = new ItemCASAdapter(baseUrl.toString(), includeRawDocs, includeAnnotations,
-				converter);
+				converter, itemCache);
+		itemCASAdapter.setRawDocSelection(rawDocTypes == null ? null : Arrays.asList(rawDocTypes),
+				maxRawDocKB * 1024L, apiKey);
+		itemCASAdapter.setWindowing(windowSize, windowOverlap, windowAlignmentType);
+		itemCASAdapter.setAnnotationTypeFilter(
+				includeAnnotationTypes == null ? null : Arrays.asList(includeAnnotationTypes),
+				excludeAnnotationTypes == null ? null : Arrays.asList(excludeAnnotationTypes));
+		BulkAnnotationFetcher bulkFetcher = null;
+		if (bulkAnnotationFetch && includeAnnotations)
+			bulkFetcher = new BulkAnnotationFetcher(client);
+		itemsIter = new ItemPrefetcher(items.iterator(), itemCASAdapter, prefetchThreads, prefetchDepth,
+				bulkFetcher, bulkAnnotationBatchSize);
+	}
+
+	/** Select the items from the catalog which this reader should output */
+	private List<Item> selectItems(List<? extends Item> catalog) throws IOException {
+		if (checkpointDir != null)
+			checkpoint = ItemCheckpoint.forDirectory(checkpointDir);
+		List<Item> items = new ArrayList<Item>(catalog.size() / shardCount + 1);
+		for (Item item : catalog) {
+			if (!isInShard(item.getUri()))
+				continue;
+			if (checkpoint != null && checkpoint.isProcessed(item.getUri())) {
+				++itemsSkipped; // already done in a previous run
+				if (manifest != null) // otherwise saving the manifest would forget the item
+					manifest.carryOver(item.getUri());
+			} else {
+				items.add(item);
+			}
+		}
+		if (itemsSkipped > 0)
+			LOG.info("Skipping {} items which were already processed according to the checkpoint", itemsSkipped);
+		if (shardCount > 1)
+			LOG.info("Shard {} of {} contains {} of the {} items in the list",
+					shardIndex, shardCount, items.size() + itemsSkipped, catalog.size());
+		return items;
+	}
+
+	private boolean isInShard(String itemUri) {
+		if (shardCount == 1)
+			return true;
+		// String.hashCode() is stable, but has poor dispersion for URIs differing only in a suffix
+		CRC32 crc = new CRC32();
+		try {
+			crc.update(itemUri.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		return crc.getValue() % shardCount == shardIndex;
 	}
 
 	/*
@@ -246,12 +549,116 @@ public class ItemListCollectionReader extends CasCollectionReader_ImplBase {
 	 * .CAS)
 	 */
 	public void getNext(CAS cas) throws IOException, CollectionException {
+		if (!pendingWindows.isEmpty()) {
+			try {
+				itemCASAdapter.storeItemInCas(windowedItem, cas, pendingWindows.remove());
+			} catch (CASException e) {
+				throw new CollectionException(e);
+			}
+			if (pendingWindows.isEmpty())
+				windowedItem = null;
+			return;
+		}
 		++itemsFetched;
+		FetchedItem item;
 		try {
-			itemCASAdapter.storeItemInCas(itemsIter.next(), cas);
+			if (casCache != null)
+				prepareCasCache(cas.getTypeSystem());
+			item = nextItem();
+			if (!item.isFetched()) {
+				if (casCache.read(item.getUri(), casCacheFingerprint, cas)) {
+					ITEMS_READ.mark();
+					CHARS_READ.mark(cas.getDocumentText() == null ? 0 : cas.getDocumentText().length());
+					return;
+				}
+				item = itemCASAdapter.fetchItem(itemsByUri.get(item.getUri()));
+			}
+			List<TextWindow> windows = itemCASAdapter.getWindows(item, cas.getTypeSystem());
+			if (windows.isEmpty()) {
+				itemCASAdapter.storeItemInCas(item, cas);
+				if (casCache != null) // windowed items aren't cached, since the cache holds one CAS per item
+					casCache.write(item.getUri(), casCacheFingerprint, cas);
+			} else {
+				LOG.debug("Dividing item {} into {} windows", item.getUri(), windows.size());
+				windowedItem = item;
+				pendingWindows.addAll(windows);
+				itemCASAdapter.storeItemInCas(item, cas, pendingWindows.remove());
+			}
 		} catch (CASException e) {
 			throw new CollectionException(e);
 		}
+		ITEMS_READ.mark();
+		CHARS_READ.mark(item.getPrimaryText() == null ? 0 : item.getPrimaryText().length());
+		for (FetchedItem.FetchedDocument fd : item.getDocuments()) {
+			if (fd.getRawText() != null)
+				CHARS_READ.mark(fd.getRawText().length());
+		}
+	}
+
+	/** Calculate the CAS cache fingerprint for the type system, and (unless changes need to be detected)
+	 * stop fetching items which can be read from the cache
+	 */
+	private void prepareCasCache(TypeSystem ts) {
+		if (ts == casCacheTypeSystem)
+			return;
+		casCacheTypeSystem = ts;
+		casCacheFingerprint = CasCache.fingerprint(ts, getCasCacheSettings());
+		if (manifest == null) {
+			final String fingerprint = casCacheFingerprint;
+			itemsIter.setSkipFetching(new Predicate<String>() {
+				@Override
+				public boolean apply(String itemUri) {
+					return casCache.contains(itemUri, fingerprint);
+				}
+			});
+		}
+	}
+
+	/** Describe the settings which affect the contents of the CASes */
+	private String getCasCacheSettings() {
+		return String.format("%s raw=%b %s %d ann=%b %s %s %s win=%d %d %s", baseUrl, includeRawDocs,
+				rawDocTypes == null ? null : Arrays.asList(rawDocTypes), maxRawDocKB, includeAnnotations,
+				includeAnnotationTypes == null ? null : Arrays.asList(includeAnnotationTypes),
+				excludeAnnotationTypes == null ? null : Arrays.asList(excludeAnnotationTypes),
+				Arrays.asList(annotationConverterClasses), windowSize, windowOverlap, windowAlignmentType);
+	}
+
+	private FetchedItem nextItem() throws CASException {
+		if (manifest == null)
+			return itemsIter.next();
+		findChangedItem();
+		FetchedItem item = pendingItem;
+		CASException error = pendingError;
+		pendingItem = null;
+		pendingError = null;
+		if (error != null)
+			throw error;
+		if (item == null)
+			throw new NoSuchElementException();
+		return item;
+	}
+
+	/** Skip over items which are unchanged since the previous run, passing
+	 * the fingerprint of each item to the manifest as we go.
+	 *
+	 * @return whether there is a changed item (or fetch failure) to return
+	 */
+	private boolean findChangedItem() {
+		while (pendingItem == null && pendingError == null && itemsIter.hasNext()) {
+			FetchedItem item;
+			try {
+				item = itemsIter.next();
+			} catch (CASException e) {
+				pendingError = e; // report it on the getNext() call which would have returned this item
+				break;
+			}
+			String fingerprint = ItemManifest.fingerprint(item, manifestIgnoredTypeUris);
+			if (manifest.checkUnchanged(item.getUri(), fingerprint))
+				++itemsSkipped;
+			else
+				pendingItem = item;
+		}
+		return pendingItem != null || pendingError != null;
 	}
 
 
@@ -262,7 +669,14 @@ public class ItemListCollectionReader extends CasCollectionReader_ImplBase {
 	 * @see org.apache.uima.collection.base_cpm.BaseCollectionReader#hasNext()
 	 */
 	public boolean hasNext() throws IOException, CollectionException {
-		return itemsIter.hasNext();
+		if (!pendingWindows.isEmpty())
+			return true;
+		boolean more = manifest != null ? findChangedItem() : itemsIter.hasNext();
+		if (!more && checkpoint != null)
+			checkpoint.markAllItemsRead();
+		if (!more && manifest != null)
+			manifest.markAllItemsRead();
+		return more;
 	}
 
 	/*
@@ -272,7 +686,24 @@ public class ItemListCollectionReader extends CasCollectionReader_ImplBase {
 	 * org.apache.uima.collection.base_cpm.BaseCollectionReader#getProgress()
 	 */
 	public Progress[] getProgress() {
-		return new Progress[] { new ProgressImpl(itemsFetched, totalItems, Progress.ENTITIES) };
+		return new Progress[] { new ProgressImpl(itemsFetched + itemsSkipped, totalItems, Progress.ENTITIES) };
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (manifest != null && isComplete()) // ItemCheckpointWriter saves the manifest once every item is processed
+			LOG.info("Read {} items and skipped {} unchanged or already-processed items", itemsFetched, itemsSkipped);
+		if (itemsIter != null)
+			itemsIter.close();
+		if (metricsFile != null)
+			MetricsRegistry.writeReport(metricsFile);
+		super.close();
+	}
+
+	/** Returns whether every item has been read, without fetching anything further */
+	private boolean isComplete() {
+		return itemsIter != null && pendingItem == null && pendingError == null && pendingWindows.isEmpty()
+				&& !itemsIter.hasNext();
 	}
 
 }
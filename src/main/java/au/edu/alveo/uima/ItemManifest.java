@@ -0,0 +1,208 @@
+package au.edu.alveo.uima;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A record of the items seen in a run of the collection reader, and a fingerprint of
+ * the content of each one, so that a later run can determine which items have been added
+ * or changed in the meantime.
+ *
+ * The manifest is stored as a text file with one line per item, containing the fingerprint
+ * and the item URI separated by a tab. The fingerprints from the previous run are loaded
+ * when the manifest is opened. The fingerprint of a changed item is only kept once the item
+ * has been completely processed (see {@link #markProcessed(String)}) and any annotations
+ * uploaded for it in the background have reached the server, so an item which fails is output
+ * again by the next run. The fingerprints recorded during this run are only written
+ * once the collection reader has read every item and the collection has been processed
+ * (see {@link #saveIfComplete()}), so an unsuccessful run leaves the previous manifest intact.
+ *
+ * Instances are shared per file (see {@link #forFile(java.io.File)}) so that the collection reader
+ * and {@link ItemCheckpointWriter} in the same JVM use the same manifest.
+ */
+class ItemManifest {
+	private static final Logger LOG = LoggerFactory.getLogger(ItemManifest.class);
+	private static final Map<File, ItemManifest> INSTANCES = new HashMap<File, ItemManifest>();
+
+	private final File file;
+	private final Map<String, String> previous = new HashMap<String, String>();
+	private final Map<String, String> current = new LinkedHashMap<String, String>();
+	/** The fingerprints of changed items which have been read but not yet completely processed */
+	private final Map<String, String> pending = new HashMap<String, String>();
+	private boolean allItemsRead = false;
+
+	public static synchronized ItemManifest forFile(File file) throws IOException {
+		File canonical = file.getCanonicalFile();
+		ItemManifest manifest = INSTANCES.get(canonical);
+		if (manifest == null) {
+			manifest = new ItemManifest(canonical);
+			INSTANCES.put(canonical, manifest);
+		}
+		return manifest;
+	}
+
+	private ItemManifest(File file) throws IOException {
+		this.file = file;
+		if (file.exists())
+			load();
+	}
+
+	private void load() throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab < 0)
+					continue;
+				previous.put(line.substring(tab + 1), line.substring(0, tab));
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/** Check whether an item has the same fingerprint as in the previous run. If it does, the fingerprint
+	 * is kept; otherwise it is kept once the item is marked as processed.
+	 *
+	 * @return whether the item is unchanged
+	 */
+	public synchronized boolean checkUnchanged(String itemUri, String fingerprint) {
+		if (fingerprint.equals(previous.get(itemUri))) {
+			current.put(itemUri, fingerprint);
+			return true;
+		}
+		pending.put(itemUri, fingerprint);
+		return false;
+	}
+
+	/** Keep the fingerprint of a changed item, now that it has been completely processed */
+	public synchronized void markProcessed(String itemUri) {
+		String fingerprint = pending.remove(itemUri);
+		if (fingerprint != null)
+			current.put(itemUri, fingerprint);
+	}
+
+	/** Keep the fingerprint from the previous run for an item which is not being read in this run
+	 * (because it was already processed according to a checkpoint), if there was one */
+	public synchronized void carryOver(String itemUri) {
+		String fingerprint = previous.get(itemUri);
+		if (fingerprint != null)
+			current.put(itemUri, fingerprint);
+	}
+
+	/** Record that the collection reader has read every item */
+	public synchronized void markAllItemsRead() {
+		allItemsRead = true;
+	}
+
+	/** If the collection reader has read every item, replace the manifest on disk with the fingerprints
+	 * kept in this run, which then become the baseline for the next run with this instance.
+	 *
+	 * @return whether the manifest was saved
+	 */
+	public synchronized boolean saveIfComplete() throws IOException {
+		if (!allItemsRead)
+			return false;
+		int failedUploads = 0;
+		for (Iterator<String> it = current.keySet().iterator(); it.hasNext(); ) {
+			if (OutstandingUploads.isOutstanding(it.next())) { // its annotations never reached the server
+				it.remove();
+				failedUploads++;
+			}
+		}
+		if (!pending.isEmpty() || failedUploads > 0)
+			LOG.warn("{} changed items were not completely processed and will be output again by the next run",
+					pending.size() + failedUploads);
+		save();
+		previous.clear();
+		previous.putAll(current);
+		current.clear();
+		pending.clear();
+		allItemsRead = false;
+		return true;
+	}
+
+	/** Atomically replace the manifest on disk with the fingerprints kept in this run */
+	private void save() throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Unable to create directory " + parent);
+		File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+		FileOutputStream out = new FileOutputStream(tmp);
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+		try {
+			for (Map.Entry<String, String> entry : current.entrySet()) {
+				writer.write(entry.getValue());
+				writer.write('\t');
+				writer.write(entry.getKey());
+				writer.newLine();
+			}
+			writer.flush();
+			out.getFD().sync();
+		} finally {
+			writer.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/** Calculate a fingerprint of the content of an item -- its primary text and (if they
+	 * were fetched) its annotations. The order of the annotations is not significant.
+	 *
+	 * @param ignoredTypeUris The Alveo type URIs of annotations to leave out, such as those which
+	 *                        the pipeline itself uploads
+	 */
+	public static String fingerprint(FetchedItem item, Set<String> ignoredTypeUris) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			update(digest, item.getPrimaryText());
+			if (item.hasAnnotations()) {
+				List<String> anns = new ArrayList<String>(item.getAnnotations().size());
+				for (FetchedItem.FetchedAnnotation ann : item.getAnnotations()) {
+					if (ignoredTypeUris.contains(ann.getType()))
+						continue;
+					anns.add(ann.getStart() + "\t" + ann.getEnd() + "\t" + ann.getType() + "\t" + ann.getLabel());
+				}
+				Collections.sort(anns);
+				for (String ann : anns)
+					update(digest, ann);
+			}
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest.digest())
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void update(MessageDigest digest, String s) throws UnsupportedEncodingException {
+		if (s != null)
+			digest.update(s.getBytes("UTF-8"));
+		digest.update((byte) 0); // separator, so that adjacent values can't run together
+	}
+}
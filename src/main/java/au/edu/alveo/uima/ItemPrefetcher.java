@@ -0,0 +1,181 @@
+package au.edu.alveo.uima;
+
+import au.edu.alveo.client.entity.Item;
+import com.google.common.base.Predicate;
+import org.apache.uima.cas.CASException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Fetches items from the server ahead of when they are needed, so that the
+ * collection reader doesn't need to wait on the network for each item.
+ *
+ * A bounded pool of worker threads fetches up to <code>depth</code> items ahead of
+ * the current position. Items are always returned in the order of the source iterator,
+ * and if fetching an item failed, the failure is thrown from the call to {@link #next()}
+ * which would have returned that item. If the number of threads is zero, no background
+ * fetching is done and each item is fetched when it is requested.
+ *
+ * If a {@link BulkAnnotationFetcher} is supplied, items are taken from the source in batches,
+ * and the annotations for each batch are retrieved with a single query before the items in it are fetched.
+ */
+class ItemPrefetcher {
+	private static final Logger LOG = LoggerFactory.getLogger(ItemPrefetcher.class);
+
+	private final Iterator<? extends Item> source;
+	private final ItemCASAdapter adapter;
+	private final ExecutorService executor;
+	private final int depth;
+	private final Queue<Future<FetchedItem>> pending = new LinkedList<Future<FetchedItem>>();
+	private final BulkAnnotationFetcher bulkFetcher;
+	private final int bulkBatchSize;
+	private final Queue<Item> batchItems = new LinkedList<Item>();
+	private Future<Map<String, List<FetchedItem.FetchedAnnotation>>> batchAnns = null;
+	private volatile Predicate<String> skipFetching = null;
+
+	public ItemPrefetcher(Iterator<? extends Item> source, ItemCASAdapter adapter, int numThreads, int depth) {
+		this(source, adapter, numThreads, depth, null, 0);
+	}
+
+	/**
+	 * @param bulkFetcher If not <code>null</code>, used to retrieve the annotations for
+	 *                    <code>bulkBatchSize</code> items at a time
+	 */
+	public ItemPrefetcher(Iterator<? extends Item> source, ItemCASAdapter adapter, int numThreads, int depth,
+			BulkAnnotationFetcher bulkFetcher, int bulkBatchSize) {
+		this.source = source;
+		this.adapter = adapter;
+		this.bulkFetcher = bulkFetcher;
+		this.bulkBatchSize = Math.max(bulkBatchSize, 1);
+		if (numThreads > 0) {
+			this.executor = Executors.newFixedThreadPool(numThreads, new DaemonThreadFactory("alveo-item-prefetch-"));
+			this.depth = Math.max(depth, numThreads);
+		} else {
+			this.executor = null;
+			this.depth = 0;
+		}
+	}
+
+	/** Don't fetch items whose URIs match the predicate; instead, return a placeholder
+	 * for them (see {@link FetchedItem#unfetched(String)}). This should be set before the first call to {@link #next()}
+	 */
+	public void setSkipFetching(Predicate<String> skipFetching) {
+		this.skipFetching = skipFetching;
+	}
+
+	public boolean hasNext() {
+		return !pending.isEmpty() || !batchItems.isEmpty() || source.hasNext();
+	}
+
+	public FetchedItem next() throws CASException {
+		if (executor == null)
+			return fetch(takeFromSource(), batchAnns);
+		fill();
+		Future<FetchedItem> head = pending.remove();
+		try {
+			return head.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CASException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof CASException)
+				throw (CASException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new CASException(cause);
+		} finally {
+			fill(); // keep the workers busy while the caller populates the CAS
+		}
+	}
+
+	/** Stop any background fetching. Items which have not yet been returned are discarded */
+	public void close() {
+		if (executor == null)
+			return;
+		for (Future<FetchedItem> f : pending)
+			f.cancel(true);
+		pending.clear();
+		executor.shutdownNow();
+	}
+
+	private void fill() {
+		while (pending.size() < depth && (!batchItems.isEmpty() || source.hasNext())) {
+			final Item item = takeFromSource();
+			final Future<Map<String, List<FetchedItem.FetchedAnnotation>>> anns = batchAnns;
+			pending.add(executor.submit(new Callable<FetchedItem>() {
+				@Override
+				public FetchedItem call() throws CASException {
+					return fetch(item, anns);
+				}
+			}));
+		}
+	}
+
+	private Item takeFromSource() {
+		if (bulkFetcher == null)
+			return source.next();
+		if (batchItems.isEmpty())
+			startBatch();
+		return batchItems.remove();
+	}
+
+	/** Take the next batch of items from the source, and start retrieving their annotations. The batch
+	 * query is submitted before any of the items in it, so workers waiting on it never hold up the query itself
+	 */
+	private void startBatch() {
+		final List<Item> batch = new ArrayList<Item>(bulkBatchSize);
+		while (batch.size() < bulkBatchSize && source.hasNext())
+			batch.add(source.next());
+		batchItems.addAll(batch);
+		Callable<Map<String, List<FetchedItem.FetchedAnnotation>>> query =
+				new Callable<Map<String, List<FetchedItem.FetchedAnnotation>>>() {
+					@Override
+					public Map<String, List<FetchedItem.FetchedAnnotation>> call() {
+						return bulkFetcher.fetch(batch);
+					}
+				};
+		if (executor != null) {
+			batchAnns = executor.submit(query);
+		} else {
+			FutureTask<Map<String, List<FetchedItem.FetchedAnnotation>>> task =
+					new FutureTask<Map<String, List<FetchedItem.FetchedAnnotation>>>(query);
+			task.run();
+			batchAnns = task;
+		}
+	}
+
+	private FetchedItem fetch(Item item, Future<Map<String, List<FetchedItem.FetchedAnnotation>>> anns)
+			throws CASException {
+		Predicate<String> skip = skipFetching;
+		if (skip != null && skip.apply(item.getUri()))
+			return FetchedItem.unfetched(item.getUri());
+		if (anns == null)
+			return adapter.fetchItem(item);
+		List<FetchedItem.FetchedAnnotation> itemAnns = null;
+		try {
+			itemAnns = anns.get().get(item.getUri());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CASException(e);
+		} catch (ExecutionException e) {
+			LOG.warn("Bulk annotation fetch failed; fetching annotations for {} individually", item.getUri(), e.getCause());
+		}
+		return adapter.fetchItem(item, itemAnns);
+	}
+}
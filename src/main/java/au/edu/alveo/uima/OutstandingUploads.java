@@ -0,0 +1,36 @@
+package au.edu.alveo.uima;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The items whose new annotations {@link ItemAnnotationUploader} has buffered or queued but not yet
+ * uploaded, so that {@link ItemCheckpoint} does not record them as processed before their annotations
+ * are on the server. An item whose upload fails stays outstanding, so it is never recorded and a
+ * restarted pipeline processes it again.
+ */
+class OutstandingUploads {
+	private static final Map<String, Integer> COUNTS = new HashMap<String, Integer>();
+
+	private OutstandingUploads() {
+	}
+
+	/** Record that annotations for an item have been buffered or queued */
+	public static synchronized void begin(String itemUri) {
+		Integer count = COUNTS.get(itemUri);
+		COUNTS.put(itemUri, count == null ? 1 : count + 1);
+	}
+
+	/** Record that annotations recorded by {@link #begin(String)} have been uploaded */
+	public static synchronized void end(String itemUri) {
+		Integer count = COUNTS.get(itemUri);
+		if (count == null || count <= 1)
+			COUNTS.remove(itemUri);
+		else
+			COUNTS.put(itemUri, count - 1);
+	}
+
+	public static synchronized boolean isOutstanding(String itemUri) {
+		return COUNTS.containsKey(itemUri);
+	}
+}
@@ -0,0 +1,85 @@
+package au.edu.alveo.uima;
+
+import au.edu.alveo.client.RestClient;
+import au.edu.alveo.client.entity.InvalidServerAddressException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A {@link RestClient} shared by all of the components in the JVM which use the same server and
+ * API key, such as the replicas of a component in a multi-threaded CPE, so that they share its
+ * connections rather than each opening their own.
+ *
+ * The number of requests made through the client at once can be limited, so that the load on the
+ * server depends on configuration rather than on how many pipeline threads happen to be running.
+ * Instances are reference-counted: each {@link #acquire} must be matched by a {@link #release()}.
+ */
+class SharedRestClient {
+	private static final Logger LOG = LoggerFactory.getLogger(SharedRestClient.class);
+	private static final Map<String, SharedRestClient> CLIENTS = new HashMap<String, SharedRestClient>();
+
+	private final String key;
+	private final RestClient client;
+	private final int maxConcurrentRequests;
+	private final Semaphore permits;
+	private int references = 0;
+
+	private SharedRestClient(String key, RestClient client, int maxConcurrentRequests) {
+		this.key = key;
+		this.client = client;
+		this.maxConcurrentRequests = maxConcurrentRequests > 0 ? maxConcurrentRequests : 0;
+		this.permits = maxConcurrentRequests > 0 ? new Semaphore(maxConcurrentRequests, true) : null;
+	}
+
+	/** Get the shared client for a server and API key, creating it if necessary
+	 *
+	 * @param maxConcurrentRequests The maximum number of requests to make at once, or zero for no limit.
+	 *                              This only has an effect when the client is created, by the first caller
+	 */
+	public static synchronized SharedRestClient acquire(String baseUrl, String apiKey, int maxConcurrentRequests)
+			throws InvalidServerAddressException {
+		String key = baseUrl + '\n' + apiKey;
+		SharedRestClient shared = CLIENTS.get(key);
+		if (shared == null) {
+			shared = new SharedRestClient(key, new RestClient(baseUrl, apiKey), maxConcurrentRequests);
+			CLIENTS.put(key, shared);
+		} else if (Math.max(maxConcurrentRequests, 0) != shared.getMaxConcurrentRequests()) {
+			LOG.warn("Using the existing client for {}, which allows {} concurrent requests rather than {}",
+					new Object[] {baseUrl, shared.getMaxConcurrentRequests(), maxConcurrentRequests});
+		}
+		shared.references++;
+		return shared;
+	}
+
+	public RestClient getClient() {
+		return client;
+	}
+
+	/** The maximum number of concurrent requests, or zero for no limit */
+	public int getMaxConcurrentRequests() {
+		return maxConcurrentRequests;
+	}
+
+	/** Wait until another request may be made. Each call must be followed by a call to {@link #endRequest()} */
+	public void beginRequest() throws InterruptedException {
+		if (permits != null)
+			permits.acquire();
+	}
+
+	public void endRequest() {
+		if (permits != null)
+			permits.release();
+	}
+
+	/** Stop using the client, discarding it once nothing else is using it */
+	public void release() {
+		synchronized (SharedRestClient.class) {
+			if (--references == 0)
+				CLIENTS.remove(key);
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package au.edu.alveo.uima;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A window over the primary text of an item, used when an item is too large to be held in a
+ * single CAS and is instead divided into several.
+ *
+ * The cores of the windows of an item divide its text into contiguous, non-overlapping regions.
+ * Each window covers its core plus some overlap with the following window, so that analysis
+ * near the end of the core has some context, and may be widened further so that spans which
+ * begin in its core also end within it. All offsets are relative to the whole item.
+ */
+class TextWindow {
+	private final int index;
+	private final int count;
+	private final int begin;
+	private final int end;
+	private final int coreBegin;
+	private final int coreEnd;
+
+	public TextWindow(int index, int count, int begin, int end, int coreBegin, int coreEnd) {
+		this.index = index;
+		this.count = count;
+		this.begin = begin;
+		this.end = end;
+		this.coreBegin = coreBegin;
+		this.coreEnd = coreEnd;
+	}
+
+	/** Divide a text into windows.
+	 *
+	 * @param textLength The length of the text
+	 * @param size The maximum length of each window
+	 * @param overlap The number of characters by which each window extends beyond its core; must be less than <code>size</code>
+	 * @param alignmentPoints Offsets (such as the starts of speaker turns) at which window cores should preferably begin.
+	 *                        Cores begin at the last alignment point which keeps the previous window within its maximum
+	 *                        length, unless that would make the previous core less than half as long as it could be
+	 * @return the windows, or an empty list if the text fits in a single window
+	 */
+	public static List<TextWindow> split(int textLength, int size, int overlap, int[] alignmentPoints) {
+		if (size <= 0 || textLength <= size)
+			return Collections.emptyList();
+		int step = size - overlap;
+		int[] points = alignmentPoints.clone();
+		Arrays.sort(points);
+		List<Integer> coreStarts = new ArrayList<Integer>();
+		int coreStart = 0;
+		coreStarts.add(coreStart);
+		while (textLength - coreStart > size) {
+			int target = coreStart + step;
+			int next = target;
+			// find the last alignment point at or before the target
+			int pos = Arrays.binarySearch(points, target);
+			int candidate = pos >= 0 ? pos : -pos - 2;
+			if (candidate >= 0 && points[candidate] > coreStart + step / 2)
+				next = points[candidate];
+			coreStart = next;
+			coreStarts.add(coreStart);
+		}
+		List<TextWindow> windows = new ArrayList<TextWindow>(coreStarts.size());
+		for (int i = 0; i < coreStarts.size(); i++) {
+			boolean last = i == coreStarts.size() - 1;
+			int cb = coreStarts.get(i);
+			int ce = last ? textLength : coreStarts.get(i + 1);
+			int end = last ? textLength : Math.min(textLength, ce + overlap);
+			windows.add(new TextWindow(i, coreStarts.size(), cb, end, cb, ce));
+		}
+		return windows;
+	}
+
+	/** Widen windows so that each span ends within the window in whose core it begins.
+	 *
+	 * Spans which already fit, or which begin outside every core, leave the windows unchanged.
+	 * Widened windows may be longer than the maximum length passed to {@link #split}.
+	 *
+	 * @param windows The windows of an item, as returned by {@link #split}
+	 * @param spanBegins The begin offsets of the spans
+	 * @param spanEnds The end offsets of the spans, in the same order as <code>spanBegins</code>
+	 * @return the windows, with any which needed widening replaced
+	 */
+	public static List<TextWindow> widenToFit(List<TextWindow> windows, int[] spanBegins, int[] spanEnds) {
+		if (windows.isEmpty())
+			return windows;
+		int[] coreBegins = new int[windows.size()];
+		int[] ends = new int[windows.size()];
+		for (int i = 0; i < coreBegins.length; i++) {
+			coreBegins[i] = windows.get(i).getCoreBegin();
+			ends[i] = windows.get(i).getEnd();
+		}
+		for (int i = 0; i < spanBegins.length; i++) {
+			// the last window whose core begins at or before the span
+			int pos = Arrays.binarySearch(coreBegins, spanBegins[i]);
+			int w = pos >= 0 ? pos : -pos - 2;
+			if (w >= 0 && spanBegins[i] < windows.get(w).getCoreEnd() && spanEnds[i] > ends[w])
+				ends[w] = spanEnds[i];
+		}
+		List<TextWindow> widened = new ArrayList<TextWindow>(windows.size());
+		for (int i = 0; i < ends.length; i++) {
+			TextWindow win = windows.get(i);
+			widened.add(ends[i] == win.getEnd() ? win
+					: new TextWindow(win.index, win.count, win.begin, ends[i], win.coreBegin, win.coreEnd));
+		}
+		return widened;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public int getBegin() {
+		return begin;
+	}
+
+	public int getEnd() {
+		return end;
+	}
+
+	public int getCoreBegin() {
+		return coreBegin;
+	}
+
+	public int getCoreEnd() {
+		return coreEnd;
+	}
+
+	/** Returns whether a span (in item coordinates) lies entirely inside the window */
+	public boolean contains(int spanBegin, int spanEnd) {
+		return spanBegin >= begin && spanEnd <= end;
+	}
+}
@@ -23,7 +23,18 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Created by amack on 27/03/14.
@@ -63,6 +74,80 @@ public class TypeSystemAutoAugmenter {
 		knownCorpora.add(corpusName);
 	}
 
+	/** Read the types corresponding to several corpora, querying the server for up to <code>parallelism</code>
+	 * of them at once. Corpora which have already been added are skipped.
+	 *
+	 * The types are added in order of their URIs once all of the queries have finished, so the resulting
+	 * type system does not depend on the order in which the queries complete. A corpus whose query does not
+	 * finish within the timeout is left out, with a logged error, in the same way as one which is not found,
+	 * but is queried again if it is added later.
+	 *
+	 * @param timeoutSecs The maximum time for each query, or zero for no limit
+	 */
+	public void addCorpora(Collection<String> corpusNames, int parallelism, int timeoutSecs) throws URISyntaxException,
+			OpenRDFException, InterruptedException {
+		Map<String, Future<Collection<String>>> queries = new LinkedHashMap<String, Future<Collection<String>>>();
+		for (String corpusName : corpusNames) {
+			if (!knownCorpora.contains(corpusName))
+				queries.put(corpusName, null);
+		}
+		if (queries.isEmpty())
+			return;
+		int numThreads = Math.max(1, Math.min(parallelism, queries.size()));
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads, new DaemonThreadFactory("alveo-type-discovery-"));
+		Set<String> typeUris = new TreeSet<String>();
+		// only marked as known once their types have been inserted, in case a later query fails
+		List<String> finished = new ArrayList<String>(queries.size());
+		try {
+			for (Map.Entry<String, Future<Collection<String>>> query : queries.entrySet()) {
+				final String corpusName = query.getKey();
+				final int maxQueryTime = timeoutSecs;
+				query.setValue(executor.submit(new Callable<Collection<String>>() {
+					@Override
+					public Collection<String> call() throws Exception {
+						return getTypeURIsForCorpus(corpusName, maxQueryTime);
+					}
+				}));
+			}
+			// queries can wait for a thread, so allow for every earlier query running to the limit
+			int rounds = (queries.size() + numThreads - 1) / numThreads;
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos((long) timeoutSecs * rounds);
+			for (Map.Entry<String, Future<Collection<String>>> query : queries.entrySet()) {
+				String corpusName = query.getKey();
+				Future<Collection<String>> result = query.getValue();
+				try {
+					if (timeoutSecs > 0)
+						typeUris.addAll(result.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+					else
+						typeUris.addAll(result.get());
+					finished.add(corpusName);
+				} catch (TimeoutException e) {
+					result.cancel(true);
+					LOG.error("Timed out after {}s querying types for collection {}; its types will be missing",
+							timeoutSecs, corpusName);
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof QueryEvaluationException) {
+						checkQueryFailure((QueryEvaluationException) cause, corpusName);
+						finished.add(corpusName); // the corpus is missing or unauthorised, so don't ask again
+					} else if (cause instanceof OpenRDFException)
+						throw (OpenRDFException) cause;
+					else if (cause instanceof RuntimeException)
+						throw (RuntimeException) cause;
+					else if (cause instanceof Error)
+						throw (Error) cause;
+					else
+						throw new RepositoryException(cause);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		for (String typeUri : typeUris)
+			insertType(typeUri);
+		knownCorpora.addAll(finished);
+	}
+
 	public TypeSystemDescription getTypeSystemDescription() {
 		return tsd;
 	}
@@ -95,40 +180,56 @@ public class TypeSystemAutoAugmenter {
 	private void importTypesForCorpus(String corpusName) throws URISyntaxException,
 			QueryEvaluationException, MalformedQueryException, RepositoryException {
 		try {
-			for (String typeUri : getTypeURIsForCorpus(corpusName))
+			for (String typeUri : getTypeURIsForCorpus(corpusName, 0))
 				insertType(typeUri);
 		} catch (QueryEvaluationException e) {
-			Throwable cause = e.getCause();
-			// if it's just an authorization problem, that's probably
-			// because the corpus name is invalid.
-			// this could be because we're hardcoding the corpus names
-			// due to https://track.intersect.org.au/browse/HCSVLAB-868
-			// XXX: once fixed, take out this catch clause
-			boolean isRepoException = cause instanceof RepositoryException;
-			boolean isAuth = isRepoException && cause.getMessage().contains("not authorized");
-			boolean isMissing = isRepoException && cause.getMessage().contains("no such resource");
-			if (isMissing)
-				LOG.error("Collection {} was not found", corpusName);
-			else if (isAuth)
-				LOG.error("Insufficient priveleges for collection {}", corpusName);
-			else
-				throw e;
+			checkQueryFailure(e, corpusName);
 		}
 	}
 
-	private Collection<String> getTypeURIsForCorpus(String corpusName) throws QueryEvaluationException, MalformedQueryException, RepositoryException {
+	/** Log a failed query if the corpus should just be skipped, otherwise rethrow the exception */
+	private void checkQueryFailure(QueryEvaluationException e, String corpusName) throws QueryEvaluationException {
+		Throwable cause = e.getCause();
+		// if it's just an authorization problem, that's probably
+		// because the corpus name is invalid.
+		// this could be because we're hardcoding the corpus names
+		// due to https://track.intersect.org.au/browse/HCSVLAB-868
+		// XXX: once fixed, take out this check
+		boolean isRepoException = cause instanceof RepositoryException;
+		boolean isAuth = isRepoException && cause.getMessage().contains("not authorized");
+		boolean isMissing = isRepoException && cause.getMessage().contains("no such resource");
+		if (isMissing)
+			LOG.error("Collection {} was not found", corpusName);
+		else if (isAuth)
+			LOG.error("Insufficient priveleges for collection {}", corpusName);
+		else
+			throw e;
+	}
+
+	/** @param maxQueryTime The maximum time in seconds for the query, or zero for no limit */
+	private Collection<String> getTypeURIsForCorpus(String corpusName, int maxQueryTime) throws QueryEvaluationException,
+			MalformedQueryException, RepositoryException {
 		SPARQLRepository repo = restClient.getSPARQLRepository(corpusName);
 		String sparql = "SELECT DISTINCT ?type WHERE { ?ann <http://purl.org/dada/schema/0.2#type> ?type }";
 		RepositoryConnection conn = repo.getConnection();
-		TupleQuery query = conn.prepareTupleQuery(QueryLanguage.SPARQL, sparql);
-		TupleQueryResult result = query.evaluate();
-		result.getBindingNames();
-		ArrayList<String> uris = new ArrayList<String>();
-		while (result.hasNext()) {
-			BindingSet bs = result.next();
-			String typeUri = bs.getValue("type").stringValue();
-			uris.add(typeUri);
+		try {
+			TupleQuery query = conn.prepareTupleQuery(QueryLanguage.SPARQL, sparql);
+			if (maxQueryTime > 0)
+				query.setMaxQueryTime(maxQueryTime);
+			TupleQueryResult result = query.evaluate();
+			ArrayList<String> uris = new ArrayList<String>();
+			try {
+				while (result.hasNext()) {
+					BindingSet bs = result.next();
+					String typeUri = bs.getValue("type").stringValue();
+					uris.add(typeUri);
+				}
+			} finally {
+				result.close();
+			}
+			return uris;
+		} finally {
+			conn.close();
 		}
-		return uris;
 	}
 }
@@ -0,0 +1,141 @@
+package au.edu.alveo.uima;
+
+import au.edu.alveo.client.TextRestAnnotation;
+import au.edu.alveo.client.entity.Item;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Buffers the new annotations for several items, so that they can be uploaded together in a burst
+ * rather than each upload interrupting the pipeline.
+ *
+ * Annotations for an item which is added more than once (such as from several windows of a large
+ * item) are merged, so they are uploaded in a single set of requests. The batch is ready to be
+ * flushed once it holds a given number of items or annotations, an estimated number of bytes of
+ * annotation data, or its oldest entry has been waiting for a given time. Nothing checks the
+ * batch between calls, so it is the caller's job to flush a batch which has become ready.
+ */
+class UploadBatch {
+	/** The approximate size of an annotation apart from its type and label, when encoded for upload */
+	private static final int ANNOTATION_OVERHEAD_BYTES = 64;
+
+	/** The buffered annotations for a single item */
+	static class Entry {
+		private final String itemUri;
+		private Item apiItem;
+		private final List<TextRestAnnotation> annotations = new ArrayList<TextRestAnnotation>();
+		private long[] fingerprints = null;
+		private int[] journalIds = null;
+
+		Entry(String itemUri) {
+			this.itemUri = itemUri;
+		}
+
+		public String getItemUri() {
+			return itemUri;
+		}
+
+		/** The item, or <code>null</code> if it has not been retrieved yet */
+		public Item getApiItem() {
+			return apiItem;
+		}
+
+		public List<TextRestAnnotation> getAnnotations() {
+			return annotations;
+		}
+
+		/** The fingerprints of all of the candidate annotations for the item, or <code>null</code> */
+		public long[] getFingerprints() {
+			return fingerprints;
+		}
+
+		/** The IDs of the journal records for the annotations, or <code>null</code> */
+		public int[] getJournalIds() {
+			return journalIds;
+		}
+	}
+
+	private final int maxItems;
+	private final int maxAnnotations;
+	private final long maxBytes;
+	private final long maxDelayNanos;
+
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private int numAnnotations = 0;
+	private long numBytes = 0;
+	private long oldestNanos;
+
+	/** Create a batch. A threshold of zero or less is ignored */
+	public UploadBatch(int maxItems, int maxAnnotations, long maxBytes, long maxDelayMillis) {
+		this.maxItems = maxItems;
+		this.maxAnnotations = maxAnnotations;
+		this.maxBytes = maxBytes;
+		this.maxDelayNanos = maxDelayMillis * 1000000L;
+	}
+
+	/** Add new annotations for an item
+	 *
+	 * @param apiItem The item, or <code>null</code> if it has not been retrieved yet
+	 * @param fingerprints The fingerprints to record in the upload index once the annotations have been
+	 *                     uploaded, or <code>null</code>
+	 * @param journalIds The journal records to commit once the annotations have been uploaded, or <code>null</code>
+	 */
+	public void add(String itemUri, Item apiItem, List<TextRestAnnotation> annotations, long[] fingerprints,
+			int[] journalIds) {
+		if (entries.isEmpty())
+			oldestNanos = System.nanoTime();
+		Entry entry = entries.get(itemUri);
+		if (entry == null) {
+			entry = new Entry(itemUri);
+			entries.put(itemUri, entry);
+		}
+		if (apiItem != null)
+			entry.apiItem = apiItem;
+		entry.annotations.addAll(annotations);
+		if (fingerprints != null) {
+			long[] existing = entry.fingerprints == null ? new long[0] : entry.fingerprints;
+			entry.fingerprints = Arrays.copyOf(existing, existing.length + fingerprints.length);
+			System.arraycopy(fingerprints, 0, entry.fingerprints, existing.length, fingerprints.length);
+		}
+		if (journalIds != null) {
+			int[] existing = entry.journalIds == null ? new int[0] : entry.journalIds;
+			entry.journalIds = Arrays.copyOf(existing, existing.length + journalIds.length);
+			System.arraycopy(journalIds, 0, entry.journalIds, existing.length, journalIds.length);
+		}
+		numAnnotations += annotations.size();
+		for (TextRestAnnotation ann : annotations)
+			numBytes += estimateBytes(ann);
+	}
+
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	/** Returns whether any of the thresholds for flushing the batch have been reached */
+	public boolean isReadyToFlush() {
+		if (entries.isEmpty())
+			return false;
+		return (maxItems > 0 && entries.size() >= maxItems)
+				|| (maxAnnotations > 0 && numAnnotations >= maxAnnotations)
+				|| (maxBytes > 0 && numBytes >= maxBytes)
+				|| (maxDelayNanos > 0 && System.nanoTime() - oldestNanos >= maxDelayNanos);
+	}
+
+	/** Remove and return everything in the batch, in the order the items were first added */
+	public List<Entry> removeAll() {
+		List<Entry> result = new ArrayList<Entry>(entries.values());
+		entries.clear();
+		numAnnotations = 0;
+		numBytes = 0;
+		return result;
+	}
+
+	private static long estimateBytes(TextRestAnnotation ann) {
+		String label = ann.getLabel();
+		return ANNOTATION_OVERHEAD_BYTES + ann.getType().length() + (label == null ? 0 : label.length());
+	}
+}
@@ -0,0 +1,279 @@
+package au.edu.alveo.uima;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A persistent record of the annotations which are known to be on the server, so that when a
+ * pipeline is run again over the same items, items with nothing new to upload can be skipped
+ * without retrieving them.
+ *
+ * Each annotation is represented by a 64-bit fingerprint of its item URI, type URI, label and
+ * span (see {@link #fingerprint(long, String, String, int, int)}). Fingerprints from earlier runs
+ * are kept in a sorted file which is memory-mapped and binary-searched, with a Bloom filter in
+ * front of it so that most lookups of unknown fingerprints don't touch the file. Fingerprints
+ * added during a run are appended to a log, which is merged into the sorted file the next time
+ * the index is opened.
+ *
+ * Components using the same directory in one JVM share a single instance (see {@link #open}).
+ *
+ * Fingerprints can collide, in which case an annotation could be wrongly treated as already
+ * uploaded; with 64 bits this is vanishingly unlikely for any realistic number of annotations.
+ */
+class UploadFingerprintIndex {
+	private static final Logger LOG = LoggerFactory.getLogger(UploadFingerprintIndex.class);
+	private static final String SORTED_FILE = "fingerprints.sorted";
+	private static final String LOG_FILE = "fingerprints.log";
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final int BLOOM_BITS_PER_ENTRY = 10;
+	private static final int BLOOM_HASHES = 7;
+
+	private static final Map<File, UploadFingerprintIndex> OPEN_INDEXES = new HashMap<File, UploadFingerprintIndex>();
+
+	private final File directory;
+	private int references = 0;
+	private final LongBuffer sorted;
+	private final long[] bloom;
+	private final Set<Long> added = new HashSet<Long>();
+	private DataOutputStream log;
+
+	/** Open the index in a directory, merging in anything added in earlier runs, or get the instance
+	 * which is already open for that directory. Each call must be matched by a call to {@link #close()}.
+	 *
+	 * @param expectedNewEntries Roughly how many fingerprints are likely to be added in this run, which
+	 *                           is used to size the Bloom filter
+	 */
+	public static UploadFingerprintIndex open(File directory, int expectedNewEntries) throws IOException {
+		synchronized (OPEN_INDEXES) {
+			File key = directory.getCanonicalFile();
+			UploadFingerprintIndex index = OPEN_INDEXES.get(key);
+			if (index == null) {
+				index = new UploadFingerprintIndex(key, expectedNewEntries);
+				OPEN_INDEXES.put(key, index);
+			}
+			index.references++;
+			return index;
+		}
+	}
+
+	private UploadFingerprintIndex(File directory, int expectedNewEntries) throws IOException {
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create index directory " + directory);
+		File sortedFile = new File(directory, SORTED_FILE);
+		File logFile = new File(directory, LOG_FILE);
+		if (logFile.length() > 0)
+			compact(sortedFile, logFile);
+		sorted = map(sortedFile);
+		long bits = Math.max(64L, ((long) sorted.limit() + expectedNewEntries) * BLOOM_BITS_PER_ENTRY);
+		bloom = new long[(int) Math.min(Integer.MAX_VALUE, (bits + 63) / 64)];
+		for (int i = 0; i < sorted.limit(); i++)
+			addToBloom(sorted.get(i));
+		log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+		LOG.info("Opened upload index {} with {} fingerprints", directory, sorted.limit());
+	}
+
+	/** Hash an item URI, for use with {@link #fingerprint(long, String, String, int, int)} */
+	public static long hashItem(String itemUri) {
+		return hash(FNV_OFFSET, itemUri);
+	}
+
+	/** Calculate the fingerprint of an annotation
+	 *
+	 * @param itemHash The hash of the item URI from {@link #hashItem(String)}
+	 * @param begin The start offset, relative to the whole item
+	 * @param end The end offset, relative to the whole item
+	 */
+	public static long fingerprint(long itemHash, String type, String label, int begin, int end) {
+		long h = hash(itemHash, type);
+		h = hash(h, label == null ? "" : label);
+		h = (h ^ begin) * FNV_PRIME;
+		h = (h ^ end) * FNV_PRIME;
+		// finalize, so that the low bits used by the Bloom filter depend on everything
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static long hash(long h, String s) {
+		for (int i = 0; i < s.length(); i++)
+			h = (h ^ s.charAt(i)) * FNV_PRIME;
+		return (h ^ 0xff) * FNV_PRIME; // terminate, so adjacent strings can't run together
+	}
+
+	/** Returns whether all of the fingerprints are in the index */
+	public synchronized boolean containsAll(long[] fingerprints) {
+		for (long fp : fingerprints) {
+			if (!mightContain(fp))
+				return false;
+		}
+		for (long fp : fingerprints) {
+			if (!added.contains(fp) && !sortedContains(fp))
+				return false;
+		}
+		return true;
+	}
+
+	/** Record fingerprints of annotations which are now on the server */
+	public synchronized void addAll(long[] fingerprints) throws IOException {
+		if (log == null)
+			throw new IOException("Upload index " + directory + " is closed");
+		for (long fp : fingerprints) {
+			if (mightContain(fp) && (added.contains(fp) || sortedContains(fp)))
+				continue;
+			addToBloom(fp);
+			added.add(fp);
+			log.writeLong(fp);
+		}
+		log.flush();
+	}
+
+	/** Stop using the index, closing it once nothing else is using it */
+	public void close() throws IOException {
+		synchronized (OPEN_INDEXES) {
+			if (--references > 0)
+				return;
+			OPEN_INDEXES.remove(directory);
+		}
+		synchronized (this) {
+			if (log == null)
+				return;
+			log.close();
+			log = null;
+		}
+	}
+
+	private boolean sortedContains(long fp) {
+		int lo = 0;
+		int hi = sorted.limit() - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long v = sorted.get(mid);
+			if (v < fp)
+				lo = mid + 1;
+			else if (v > fp)
+				hi = mid - 1;
+			else
+				return true;
+		}
+		return false;
+	}
+
+	private boolean mightContain(long fp) {
+		long numBits = bloom.length * 64L;
+		int h1 = (int) fp;
+		int h2 = (int) (fp >>> 32);
+		for (int i = 1; i <= BLOOM_HASHES; i++) {
+			long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+			if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	private void addToBloom(long fp) {
+		long numBits = bloom.length * 64L;
+		int h1 = (int) fp;
+		int h2 = (int) (fp >>> 32);
+		for (int i = 1; i <= BLOOM_HASHES; i++) {
+			long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+			bloom[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	/** Merge the log into the sorted file, then empty the log */
+	private static void compact(File sortedFile, File logFile) throws IOException {
+		long[] logged = readLog(logFile);
+		Arrays.sort(logged);
+		File tmp = new File(sortedFile.getPath() + ".tmp");
+		DataInputStream in = sortedFile.exists()
+				? new DataInputStream(new BufferedInputStream(new FileInputStream(sortedFile))) : null;
+		FileOutputStream tmpOut = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tmpOut));
+		try {
+			long remaining = sortedFile.exists() ? sortedFile.length() / 8 : 0;
+			int li = 0;
+			boolean haveLast = false;
+			long last = 0;
+			while (remaining > 0 || li < logged.length) {
+				long next;
+				if (remaining > 0 && (li >= logged.length || peek(in) <= logged[li])) {
+					next = in.readLong();
+					remaining--;
+				} else {
+					next = logged[li++];
+				}
+				if (!haveLast || next != last)
+					out.writeLong(next);
+				last = next;
+				haveLast = true;
+			}
+			out.flush();
+			tmpOut.getFD().sync();
+		} finally {
+			out.close();
+			if (in != null)
+				in.close();
+		}
+		// the log is only emptied once the merged file has replaced the old one, so a crash at any
+		// point leaves either the old file and the log, or the merged file (and possibly the log)
+		Files.move(tmp.toPath(), sortedFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		new FileOutputStream(logFile).close(); // truncate
+	}
+
+	private static long peek(DataInputStream in) throws IOException {
+		in.mark(8);
+		long v = in.readLong();
+		in.reset();
+		return v;
+	}
+
+	private static long[] readLog(File logFile) throws IOException {
+		long[] values = new long[(int) (logFile.length() / 8)];
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+		try {
+			for (int i = 0; i < values.length; i++)
+				values[i] = in.readLong();
+		} catch (EOFException e) {
+			// a partly-written final entry; everything before it is intact
+		} finally {
+			in.close();
+		}
+		return values;
+	}
+
+	private static LongBuffer map(File sortedFile) throws IOException {
+		if (!sortedFile.exists())
+			return LongBuffer.allocate(0);
+		RandomAccessFile raf = new RandomAccessFile(sortedFile, "r");
+		try {
+			long length = (raf.length() / 8) * 8;
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length).asLongBuffer();
+		} finally {
+			raf.close(); // the mapping remains valid
+		}
+	}
+}
@@ -0,0 +1,315 @@
+package au.edu.alveo.uima;
+
+import au.edu.alveo.client.TextRestAnnotation;
+import au.edu.alveo.uima.utils.ReplayUploadJournal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only record of annotation uploads, so that if a pipeline dies part-way through
+ * uploading, the uploads which may not have reached the server can be replayed without running
+ * the pipeline again (see {@link ReplayUploadJournal}).
+ *
+ * The new annotations for an item are appended (and synced to disk) as soon as they are found,
+ * before they wait in a batch or queue or are sent, and a commit record is appended once the
+ * server has accepted all of them. Replaying skips annotations which are already on the server,
+ * so a record which was partly uploaded before the pipeline stopped is safe to replay. Each
+ * instance writes its own file in the journal directory, which is deleted when the journal is
+ * closed with nothing left uncommitted.
+ *
+ * Records are checksummed, so a record which was only partly written when the process died is
+ * ignored, along with anything after it. Within a chunk, types and labels are written once
+ * each and offsets are delta-encoded, which keeps the records small.
+ */
+public class UploadJournal {
+	private static final Logger LOG = LoggerFactory.getLogger(UploadJournal.class);
+	private static final String PREFIX = "upload-journal-";
+	private static final String SUFFIX = ".bin";
+	private static final byte CHUNK = 'C';
+	private static final byte COMMIT = 'K';
+
+	/** A chunk of annotations for a single item */
+	public static class Chunk {
+		private final int id;
+		private final String itemUri;
+		private final List<TextRestAnnotation> annotations;
+
+		Chunk(int id, String itemUri, List<TextRestAnnotation> annotations) {
+			this.id = id;
+			this.itemUri = itemUri;
+			this.annotations = annotations;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public String getItemUri() {
+			return itemUri;
+		}
+
+		public List<TextRestAnnotation> getAnnotations() {
+			return annotations;
+		}
+	}
+
+	private final File file;
+	private FileOutputStream out;
+	private int nextId = 0;
+	private final Map<Integer, Chunk> uncommitted = new LinkedHashMap<Integer, Chunk>();
+
+	private UploadJournal(File file) throws IOException {
+		this.file = file;
+		if (file.exists()) {
+			long validLength = read();
+			if (validLength < file.length()) {
+				// drop the partly-written record, so that new records can be read back
+				LOG.warn("Discarding incomplete record at the end of upload journal {}", file);
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					raf.setLength(validLength);
+				} finally {
+					raf.close();
+				}
+			}
+		}
+		out = new FileOutputStream(file, true);
+	}
+
+	/** Start a new journal file in the supplied directory */
+	public static UploadJournal create(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create journal directory " + directory);
+		return new UploadJournal(File.createTempFile(PREFIX, SUFFIX, directory));
+	}
+
+	/** Open an existing journal file, in order to replay its uncommitted chunks */
+	public static UploadJournal open(File file) throws IOException {
+		return new UploadJournal(file);
+	}
+
+	/** List the journal files in a directory, oldest first */
+	public static List<File> listJournals(File directory) {
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return f.isFile() && f.getName().startsWith(PREFIX) && f.getName().endsWith(SUFFIX);
+			}
+		});
+		if (files == null)
+			return Collections.emptyList();
+		List<File> result = new ArrayList<File>(Arrays.asList(files));
+		Collections.sort(result, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+			}
+		});
+		return result;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/** Record a chunk which is about to be sent, returning the ID with which to commit it */
+	public synchronized int append(String itemUri, List<TextRestAnnotation> annotations) throws IOException {
+		int id = nextId++;
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(64 + annotations.size() * 8);
+		DataOutputStream data = new DataOutputStream(buf);
+		data.writeInt(id);
+		ItemCache.writeString(data, itemUri);
+		encode(annotations, data);
+		writeRecord(CHUNK, buf.toByteArray());
+		out.getFD().sync(); // the chunk must be on disk before it can reach the server
+		uncommitted.put(id, new Chunk(id, itemUri, annotations));
+		return id;
+	}
+
+	/** Record that a chunk has been accepted by the server, or that it no longer needs to be sent */
+	public synchronized void commit(int id) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(4);
+		new DataOutputStream(buf).writeInt(id);
+		writeRecord(COMMIT, buf.toByteArray());
+		uncommitted.remove(id);
+	}
+
+	/** The chunks which have been recorded but not committed, in the order they were recorded */
+	public synchronized List<Chunk> getUncommitted() {
+		return new ArrayList<Chunk>(uncommitted.values());
+	}
+
+	/** Close the journal, deleting it if every chunk has been committed */
+	public synchronized void close() throws IOException {
+		if (out == null)
+			return;
+		out.close();
+		out = null;
+		if (uncommitted.isEmpty()) {
+			if (!file.delete())
+				LOG.warn("Unable to delete completed upload journal {}", file);
+		} else {
+			LOG.warn("{} uploads in {} were not committed; replay them with {}",
+					new Object[] {uncommitted.size(), file, ReplayUploadJournal.class.getName()});
+		}
+	}
+
+	private void writeRecord(byte kind, byte[] payload) throws IOException {
+		if (out == null)
+			throw new IOException("Upload journal " + file + " is closed");
+		CRC32 crc = new CRC32();
+		crc.update(kind);
+		crc.update(payload);
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(payload.length + 13);
+		DataOutputStream data = new DataOutputStream(buf);
+		data.writeByte(kind);
+		data.writeInt(payload.length);
+		data.write(payload);
+		data.writeLong(crc.getValue());
+		out.write(buf.toByteArray());
+		out.flush();
+	}
+
+	/** Read the records in the file, returning the length of the part which could be read */
+	private long read() throws IOException {
+		long validLength = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			while (true) {
+				byte kind;
+				byte[] payload;
+				try {
+					kind = in.readByte();
+					int length = in.readInt();
+					if (length < 0 || length > file.length())
+						break;
+					payload = new byte[length];
+					in.readFully(payload);
+					CRC32 crc = new CRC32();
+					crc.update(kind);
+					crc.update(payload);
+					if (in.readLong() != crc.getValue())
+						break;
+				} catch (EOFException e) {
+					break;
+				}
+				validLength += 13 + payload.length;
+				DataInputStream rec = new DataInputStream(new ByteArrayInputStream(payload));
+				int id = rec.readInt();
+				nextId = Math.max(nextId, id + 1);
+				if (kind == CHUNK) {
+					String itemUri = ItemCache.readString(rec);
+					uncommitted.put(id, new Chunk(id, itemUri, decode(rec)));
+				} else if (kind == COMMIT) {
+					uncommitted.remove(id);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return validLength;
+	}
+
+	private static void encode(List<TextRestAnnotation> annotations, DataOutputStream data) throws IOException {
+		List<String> strings = new ArrayList<String>();
+		Map<String, Integer> stringIds = new HashMap<String, Integer>();
+		int[] codes = new int[annotations.size() * 2];
+		for (int i = 0; i < annotations.size(); i++) {
+			TextRestAnnotation ann = annotations.get(i);
+			codes[2 * i] = stringCode(ann.getType(), strings, stringIds);
+			codes[2 * i + 1] = stringCode(ann.getLabel(), strings, stringIds);
+		}
+		writeVarInt(data, strings.size());
+		for (String s : strings)
+			ItemCache.writeString(data, s); // unlike writeUTF, not limited to 64KB
+		writeVarInt(data, annotations.size());
+		int prevStart = 0;
+		for (int i = 0; i < annotations.size(); i++) {
+			TextRestAnnotation ann = annotations.get(i);
+			writeVarInt(data, codes[2 * i]);
+			writeVarInt(data, codes[2 * i + 1]);
+			writeVarInt(data, zigZag(ann.getStartOffset() - prevStart));
+			writeVarInt(data, zigZag(ann.getEndOffset() - ann.getStartOffset()));
+			prevStart = ann.getStartOffset();
+		}
+	}
+
+	private static List<TextRestAnnotation> decode(DataInputStream data) throws IOException {
+		String[] strings = new String[readVarInt(data)];
+		for (int i = 0; i < strings.length; i++)
+			strings[i] = ItemCache.readString(data);
+		int count = readVarInt(data);
+		List<TextRestAnnotation> annotations = new ArrayList<TextRestAnnotation>(count);
+		int start = 0;
+		for (int i = 0; i < count; i++) {
+			int typeCode = readVarInt(data);
+			int labelCode = readVarInt(data);
+			start += unZigZag(readVarInt(data));
+			int end = start + unZigZag(readVarInt(data));
+			annotations.add(new TextRestAnnotation(typeCode == 0 ? null : strings[typeCode - 1],
+					labelCode == 0 ? null : strings[labelCode - 1], start, end));
+		}
+		return annotations;
+	}
+
+	/** Returns a code for the string, where zero represents <code>null</code> */
+	private static int stringCode(String s, List<String> strings, Map<String, Integer> stringIds) {
+		if (s == null)
+			return 0;
+		Integer code = stringIds.get(s);
+		if (code == null) {
+			strings.add(s);
+			code = strings.size();
+			stringIds.put(s, code);
+		}
+		return code;
+	}
+
+	private static void writeVarInt(DataOutputStream data, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			data.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		data.writeByte(value);
+	}
+
+	private static int readVarInt(DataInputStream data) throws IOException {
+		int value = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = data.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+	}
+
+	private static int zigZag(int n) {
+		return (n << 1) ^ (n >> 31);
+	}
+
+	private static int unZigZag(int n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+}
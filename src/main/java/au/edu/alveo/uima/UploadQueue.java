@@ -0,0 +1,101 @@
+package au.edu.alveo.uima;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs item uploads on a pool of background threads, so that the pipeline thread can carry on
+ * with the next CAS while annotations are being sent to the server.
+ *
+ * At most <code>maxPending</code> uploads can be queued or running at once; {@link #submit(String, Upload)}
+ * blocks while that many are outstanding, so memory use stays bounded however slow the server is.
+ * Failures are collected, attributed to the items they belong to, and reported by {@link #drain()}.
+ */
+class UploadQueue {
+	private static final Logger LOG = LoggerFactory.getLogger(UploadQueue.class);
+
+	/** The work of uploading the annotations for a single item */
+	interface Upload {
+		void run() throws Exception;
+	}
+
+	/** An upload which failed */
+	static class Failure {
+		private final String itemUri;
+		private final Exception cause;
+
+		Failure(String itemUri, Exception cause) {
+			this.itemUri = itemUri;
+			this.cause = cause;
+		}
+
+		public String getItemUri() {
+			return itemUri;
+		}
+
+		public Exception getCause() {
+			return cause;
+		}
+	}
+
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final int maxPending;
+	private final List<Failure> failures = new ArrayList<Failure>();
+
+	public UploadQueue(int numThreads, int maxPending) {
+		this.maxPending = Math.max(maxPending, numThreads);
+		this.permits = new Semaphore(this.maxPending);
+		this.executor = Executors.newFixedThreadPool(numThreads, new DaemonThreadFactory("alveo-upload-"));
+	}
+
+	/** Queue an upload, waiting until there is room if the maximum number are already outstanding */
+	public void submit(final String itemUri, final Upload upload) throws InterruptedException {
+		permits.acquire();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						upload.run();
+					} catch (Exception e) {
+						LOG.error("Uploading annotations for {} failed: {}", itemUri, e.getMessage());
+						synchronized (failures) {
+							failures.add(new Failure(itemUri, e));
+						}
+					} finally {
+						permits.release();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/** Wait for every queued upload to finish.
+	 *
+	 * @return the uploads which failed since the last call, in the order they failed
+	 */
+	public List<Failure> drain() throws InterruptedException {
+		permits.acquire(maxPending); // only possible once nothing is outstanding
+		permits.release(maxPending);
+		synchronized (failures) {
+			List<Failure> result = new ArrayList<Failure>(failures);
+			failures.clear();
+			return result;
+		}
+	}
+
+	/** Stop the worker threads. Uploads which have not finished are abandoned */
+	public void close() {
+		executor.shutdownNow();
+	}
+}
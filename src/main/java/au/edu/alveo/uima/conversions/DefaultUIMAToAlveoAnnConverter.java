@@ -2,15 +2,16 @@ package au.edu.alveo.uima.conversions;
 
 import au.edu.alveo.client.TextRestAnnotation;
 import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.Type;
 import org.apache.uima.cas.TypeSystem;
 import org.apache.uima.cas.text.AnnotationFS;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
 
 /**
  * The default converter for creating Alveo annotations from UIMA annotations.
@@ -24,13 +25,19 @@ import java.util.TreeSet;
  * <code>labelFeatureNames</code> arguments to the constructor. If these features are not found on the
  * annotation, a fallback value is used. For the <code>type</code> URI, this is created by automatically
  * converting the type name to a URI in a sensible way. For the label this is simply the empty string
+ *
+ * The features to use for each type are worked out once per type system, so instances are safe
+ * to use from multiple threads.
  */
-public class DefaultUIMAToAlveoAnnConverter implements UIMAToAlveoAnnConverter {
+public class DefaultUIMAToAlveoAnnConverter implements UIMAToAlveoFieldConverter {
 	private final String[] annTypeFeatureNames;
 	private final String[] labelFeatureNames;
-	private TypeSystem currentTypeSystem;
-	private List<Feature> annTypeFeatures = new ArrayList<Feature>();
-	private List<Feature> labelFeatures = new ArrayList<Feature>();
+	private final TypeSystemCache<Map<Type, FeaturePlan>> featurePlans = new TypeSystemCache<Map<Type, FeaturePlan>>() {
+		@Override
+		protected Map<Type, FeaturePlan> compile(TypeSystem ts) {
+			return compileFeaturePlans(ts);
+		}
+	};
 
 	public DefaultUIMAToAlveoAnnConverter(String[] annTypeFeatureNames, String[] labelFeatureNames) {
 		this.annTypeFeatureNames = annTypeFeatureNames;
@@ -49,39 +56,52 @@ public class DefaultUIMAToAlveoAnnConverter implements UIMAToAlveoAnnConverter {
 
 	@Override
 	public void setTypeSystem(TypeSystem ts) {
-		if (ts.equals(currentTypeSystem))
-			return;
-		currentTypeSystem = ts;
 		if (canConvertAnnotations())
-			initFeatureMappings();
+			featurePlans.get(ts); // compile the plans up front
 	}
 
-	private Map<String, Set<Feature>> cachedFeatureSets = new HashMap<String, Set<Feature>>();
+	/** The features which supply the type URI and label for annotations of a particular type */
+	private static class FeaturePlan {
+		final Feature annTypeFeature;
+		final Feature labelFeature;
 
-	private Set<Feature> getKnownFeatures(AnnotationFS ann) {
-		// basic function to memoize feature sets
-		String annType = ann.getType().getName();
-		Set<Feature> knownFeatures = cachedFeatureSets.get(annType);
-		if (knownFeatures == null) {
-			knownFeatures = new TreeSet<Feature>();
-			knownFeatures.addAll(ann.getType().getFeatures());
-			cachedFeatureSets.put(annType, knownFeatures);
+		FeaturePlan(Feature annTypeFeature, Feature labelFeature) {
+			this.annTypeFeature = annTypeFeature;
+			this.labelFeature = labelFeature;
 		}
-		return knownFeatures;
 	}
 
+	private Map<Type, FeaturePlan> compileFeaturePlans(TypeSystem ts) {
+		List<Feature> annTypeFeatures = getFeatures(ts, annTypeFeatureNames);
+		List<Feature> labelFeatures = getFeatures(ts, labelFeatureNames);
+		Map<Type, FeaturePlan> plans = new HashMap<Type, FeaturePlan>();
+		Iterator<Type> types = ts.getTypeIterator();
+		while (types.hasNext()) {
+			Type type = types.next();
+			List<Feature> typeFeatures = type.getFeatures();
+			plans.put(type, new FeaturePlan(firstPresent(annTypeFeatures, typeFeatures),
+					firstPresent(labelFeatures, typeFeatures)));
+		}
+		return Collections.unmodifiableMap(plans);
+	}
 
-	private void initFeatureMappings() {
-		for (String annTypeFN: annTypeFeatureNames) {
-			Feature feat = currentTypeSystem.getFeatureByFullName(annTypeFN);
+	private static List<Feature> getFeatures(TypeSystem ts, String[] featureNames) {
+		List<Feature> features = new ArrayList<Feature>();
+		for (String fn : featureNames) {
+			Feature feat = ts.getFeatureByFullName(fn);
 			if (feat != null)
-				annTypeFeatures.add(feat);
+				features.add(feat);
 		}
-		for (String labelFN: labelFeatureNames) {
-			Feature feat = currentTypeSystem.getFeatureByFullName(labelFN);
-			if (feat != null)
-				labelFeatures.add(feat);
+		return features;
+	}
+
+	private static Feature firstPresent(List<Feature> candidates, List<Feature> typeFeatures) {
+		// getFeatureValueAsString() doesn't reliably fail for features the type lacks, so check explicitly
+		for (Feature f : candidates) {
+			if (typeFeatures.contains(f))
+				return f;
 		}
+		return null;
 	}
 
 	public boolean canConvertAnnotations() {
@@ -95,33 +115,33 @@ public class DefaultUIMAToAlveoAnnConverter implements UIMAToAlveoAnnConverter {
 
 	@Override
 	public TextRestAnnotation convertToAlveo(AnnotationFS ann) throws NotInitializedException {
-		if (!canConvertAnnotations())
-			throw new NotInitializedException("This converter has not been initialized for full-scale type conversion");
+		return new TextRestAnnotation(getAlveoType(ann), getAlveoLabel(ann), ann.getBegin(), ann.getEnd());
+	}
+
+	@Override
+	public String getAlveoType(AnnotationFS ann) throws NotInitializedException {
 		String annType = null;
-		Set<Feature> features = getKnownFeatures(ann);
-		for (Feature atf : annTypeFeatures) {
-//			try {
-//				annType = ann.getFeatureValueAsString(atf);
-//				break;
-//			} catch (CASRuntimeException e) {
-//			}
-			// not sure why the above doesn't work
-			if (features.contains(atf)) { // XXX - O(n)
-				annType = ann.getFeatureValueAsString(atf);
-				break;
-			}
-		}
+		FeaturePlan plan = getPlan(ann);
+		if (plan.annTypeFeature != null)
+			annType = ann.getFeatureValueAsString(plan.annTypeFeature);
 		if (annType == null) // haven't found anything - make en educated guess
 			annType = getAlveoTypeUriForTypeName(ann.getType().getName());
+		return annType;
+	}
+
+	@Override
+	public String getAlveoLabel(AnnotationFS ann) throws NotInitializedException {
 		String label = ""; // don't guess for this one - just make it empty
-		for (Feature lf : labelFeatures) {
-			if (features.contains(lf)) { // XXX - O(n)
-				label = ann.getFeatureValueAsString(lf);
-				break;
-			}
-		}
+		FeaturePlan plan = getPlan(ann);
+		if (plan.labelFeature != null)
+			label = ann.getFeatureValueAsString(plan.labelFeature);
+		return label;
+	}
 
-		return new TextRestAnnotation(annType, label, ann.getBegin(), ann.getEnd());
+	private FeaturePlan getPlan(AnnotationFS ann) throws NotInitializedException {
+		if (!canConvertAnnotations())
+			throw new NotInitializedException("This converter has not been initialized for full-scale type conversion");
+		return featurePlans.get(ann.getCAS().getTypeSystem()).get(ann.getType());
 	}
 
 	@Override
@@ -30,10 +30,14 @@ public class FallingBackUIMAAlveoConverter implements UIMAToAlveoAnnConverter {
 
 	@Override
 	public TextRestAnnotation convertToAlveo(AnnotationFS ann) throws NotInitializedException, InvalidAnnotationTypeException {
-		String typeName = ann.getType().getName();
+		return getConverterFor(ann.getType().getName()).convertToAlveo(ann);
+	}
+
+	/** Get the first converter in the chain which handles the provided UIMA type name */
+	public UIMAToAlveoAnnConverter getConverterFor(String uimaTypeName) {
 		for (UIMAToAlveoAnnConverter conv : converters) {
-			if (conv.handlesTypeName(typeName))
-				return conv.convertToAlveo(ann);
+			if (conv.handlesTypeName(uimaTypeName))
+				return conv;
 		}
 		throw new NoConverterMatchException("No configured converter matched");
 	}
@@ -0,0 +1,38 @@
+package au.edu.alveo.uima.conversions;
+
+import com.google.common.base.Function;
+import com.google.common.collect.MapMaker;
+import org.apache.uima.cas.TypeSystem;
+
+import java.util.Map;
+
+/**
+ * Holds an immutable artifact (such as a mapping between type URIs and types) compiled from
+ * each type system which is in use.
+ *
+ * The artifact for a type system is compiled once, the first time it is requested, and after
+ * that it can be retrieved without locking, so a single instance can be shared by all of the
+ * threads which use a component. Type systems are weakly referenced, so artifacts are discarded
+ * along with the type systems they were compiled from.
+ *
+ * @param <V> The type of the artifact, which should be immutable
+ */
+public abstract class TypeSystemCache<V> {
+	private final Map<TypeSystem, V> artifacts = new MapMaker().weakKeys().makeComputingMap(
+			new Function<TypeSystem, V>() {
+				@Override
+				public V apply(TypeSystem ts) {
+					return compile(ts);
+				}
+			});
+
+	/** Get the artifact for the supplied type system, compiling it if necessary */
+	public V get(TypeSystem ts) {
+		return artifacts.get(ts);
+	}
+
+	/** Create the artifact for the supplied type system. This is called at most once for each type
+	 * system, and must not return <code>null</code>.
+	 */
+	protected abstract V compile(TypeSystem ts);
+}
@@ -21,6 +21,13 @@ public interface UIMAToAlveoAnnConverter {
 	 * This method is called before the other conversion methods,
 	 * so it is always possible to know the type system in advance.
 	 *
+	 * A single instance can be shared by several processing threads (for instance when a CPE has
+	 * a <code>processingUnitThreadCount</code> greater than one), so this may be called again,
+	 * possibly with a different type system, while other threads are converting annotations.
+	 * Implementations must therefore be idempotent and thread-safe: rather than replacing a single
+	 * current type system, anything derived from the type system should be kept per type system
+	 * (see {@link TypeSystemCache}), or looked up from the annotation being converted.
+	 *
 	 * @param ts The new type system
 	 */
 	void setTypeSystem(TypeSystem ts);
@@ -0,0 +1,20 @@
+package au.edu.alveo.uima.conversions;
+
+import org.apache.uima.cas.text.AnnotationFS;
+
+/**
+ * A converter which can supply the Alveo type URI and label for an annotation separately,
+ * without creating a {@link au.edu.alveo.client.TextRestAnnotation}.
+ *
+ * This allows large numbers of annotations to be compared cheaply, so that only those which
+ * are actually uploaded need to be converted in full. Implementations must keep the UIMA offsets
+ * of the annotation, and must return the same values as {@link #convertToAlveo(AnnotationFS)}.
+ */
+public interface UIMAToAlveoFieldConverter extends UIMAToAlveoAnnConverter {
+
+	/** Get the Alveo type URI for the supplied annotation */
+	public String getAlveoType(AnnotationFS ann) throws NotInitializedException, InvalidAnnotationTypeException;
+
+	/** Get the Alveo label for the supplied annotation */
+	public String getAlveoLabel(AnnotationFS ann) throws NotInitializedException, InvalidAnnotationTypeException;
+}
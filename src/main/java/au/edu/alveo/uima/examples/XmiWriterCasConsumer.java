@@ -27,6 +27,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
 
+import au.edu.alveo.uima.metrics.Histogram;
+import au.edu.alveo.uima.metrics.MetricsRegistry;
 import org.apache.uima.UIMAFramework;
 import org.apache.uima.UimaContext;
 import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
@@ -59,6 +61,8 @@ import org.xml.sax.SAXException;
  * </ul>
  */
 public class XmiWriterCasConsumer extends CasConsumer_ImplBase {
+	private static final Histogram SERIALIZATION_TIME = MetricsRegistry.timer("xmi.serialization");
+
 	/**
 	 * Name of configuration parameter that must be set to the path of a
 	 * directory into which the output files will be written.
@@ -117,8 +121,10 @@ public class XmiWriterCasConsumer extends CasConsumer_ImplBase {
 		File outFile = new File(docDir(), String.format("doc_%05d.xml", mDocNum++)); // Jira
 																		// UIMA-629
 		// serialize XCAS and write to output file
+		long start = System.nanoTime();
 		try {
 			writeXmi(jcas.getCas(), outFile, modelFileName);
+			SERIALIZATION_TIME.updateNanos(System.nanoTime() - start);
 		} catch (IOException e) {
 			throw new AnalysisEngineProcessException(e);
 		} catch (SAXException e) {
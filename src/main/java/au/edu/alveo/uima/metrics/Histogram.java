@@ -0,0 +1,116 @@
+package au.edu.alveo.uima.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the distribution of a non-negative quantity, such as a latency or a size.
+ *
+ * Values are counted in log-linear buckets (eight buckets per power of two), so percentiles
+ * are accurate to within 12.5% while recording is lock-free and uses constant memory.
+ * Instances are obtained from {@link MetricsRegistry#histogram(String, String)} or
+ * {@link MetricsRegistry#timer(String)} and are safe to update from multiple threads.
+ */
+public class Histogram implements HistogramMBean {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int NUM_BUCKETS = SUB_BUCKETS * 61;
+
+	private final String unit;
+	private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	Histogram(String unit) {
+		this.unit = unit;
+	}
+
+	/** Record a value */
+	public void update(long value) {
+		if (value < 0)
+			value = 0;
+		buckets.incrementAndGet(bucketFor(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long prevMax;
+		while (value > (prevMax = max.get()) && !max.compareAndSet(prevMax, value)) {
+			// retry
+		}
+	}
+
+	/** Record a duration measured with {@link System#nanoTime()}, in microseconds */
+	public void updateNanos(long nanos) {
+		update(nanos / 1000);
+	}
+
+	@Override
+	public String getUnit() {
+		return unit;
+	}
+
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+
+	@Override
+	public double getMean() {
+		long n = count.get();
+		return n > 0 ? (double) sum.get() / n : 0.0;
+	}
+
+	@Override
+	public long getMax() {
+		return max.get();
+	}
+
+	@Override
+	public long get50thPercentile() {
+		return getPercentile(0.5);
+	}
+
+	@Override
+	public long get95thPercentile() {
+		return getPercentile(0.95);
+	}
+
+	@Override
+	public long get99thPercentile() {
+		return getPercentile(0.99);
+	}
+
+	/** Get an upper bound on the value at the supplied quantile (between 0 and 1) */
+	public long getPercentile(double quantile) {
+		long n = count.get();
+		if (n == 0)
+			return 0;
+		long target = (long) Math.ceil(quantile * n);
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= target)
+				return Math.min(bucketUpperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	private static int bucketFor(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value; // small values are counted exactly
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long bucketUpperBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int subBucket = bucket % SUB_BUCKETS;
+		int shift = exponent - SUB_BUCKET_BITS;
+		if (shift >= 59)
+			return Long.MAX_VALUE;
+		return ((SUB_BUCKETS + subBucket + 1L) << shift) - 1;
+	}
+}
@@ -0,0 +1,20 @@
+package au.edu.alveo.uima.metrics;
+
+/**
+ * The JMX management interface for a {@link Histogram}
+ */
+public interface HistogramMBean {
+	String getUnit();
+
+	long getCount();
+
+	double getMean();
+
+	long getMax();
+
+	long get50thPercentile();
+
+	long get95thPercentile();
+
+	long get99thPercentile();
+}
@@ -0,0 +1,38 @@
+package au.edu.alveo.uima.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts events (such as items read, or characters of text read) and reports their rate.
+ *
+ * Instances are obtained from {@link MetricsRegistry#meter(String)} and are safe to
+ * update from multiple threads.
+ */
+public class Meter implements MeterMBean {
+	private final AtomicLong count = new AtomicLong();
+	private final long startNanos = System.nanoTime();
+
+	Meter() {
+	}
+
+	/** Record a single event */
+	public void mark() {
+		count.incrementAndGet();
+	}
+
+	/** Record <code>n</code> events */
+	public void mark(long n) {
+		count.addAndGet(n);
+	}
+
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+
+	@Override
+	public double getMeanRate() {
+		double elapsedSecs = (System.nanoTime() - startNanos) / 1e9;
+		return elapsedSecs > 0 ? count.get() / elapsedSecs : 0.0;
+	}
+}
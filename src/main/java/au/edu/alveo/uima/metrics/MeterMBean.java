@@ -0,0 +1,11 @@
+package au.edu.alveo.uima.metrics;
+
+/**
+ * The JMX management interface for a {@link Meter}
+ */
+public interface MeterMBean {
+	long getCount();
+
+	/** The mean number of events per second since the meter was created */
+	double getMeanRate();
+}
@@ -0,0 +1,149 @@
+package au.edu.alveo.uima.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A JVM-wide registry of throughput and latency metrics for the Alveo UIMA components.
+ *
+ * Each metric is registered as an MBean named <code>au.edu.alveo.uima:type=Metrics,name=...</code>,
+ * so it can be inspected with any JMX client (such as JConsole) while a pipeline is running.
+ * The metrics can also be written periodically to a text file with
+ * {@link #startFileReporter(java.io.File, int)}.
+ *
+ * Metric names are dotted, starting with the component they belong to, for example
+ * <code>reader.items</code> or <code>rest.storeNewAnnotations</code>. Timings are in microseconds.
+ */
+public class MetricsRegistry {
+	private static final Logger LOG = LoggerFactory.getLogger(MetricsRegistry.class);
+	private static final String JMX_DOMAIN = "au.edu.alveo.uima";
+
+	private static final Map<String, Object> METRICS = new TreeMap<String, Object>();
+	private static final Set<File> REPORT_FILES = new HashSet<File>();
+	private static ScheduledExecutorService reporter = null;
+
+	private MetricsRegistry() {
+	}
+
+	/** Get the meter with the supplied name, creating it if necessary */
+	public static synchronized Meter meter(String name) {
+		Object metric = METRICS.get(name);
+		if (metric == null) {
+			metric = new Meter();
+			register(name, metric);
+		}
+		return (Meter) metric;
+	}
+
+	/** Get the histogram with the supplied name, creating it with the supplied unit if necessary */
+	public static synchronized Histogram histogram(String name, String unit) {
+		Object metric = METRICS.get(name);
+		if (metric == null) {
+			metric = new Histogram(unit);
+			register(name, metric);
+		}
+		return (Histogram) metric;
+	}
+
+	/** Get the histogram of durations (in microseconds) with the supplied name */
+	public static Histogram timer(String name) {
+		return histogram(name, "us");
+	}
+
+	private static void register(String name, Object metric) {
+		METRICS.put(name, metric);
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=Metrics,name=" + ObjectName.quote(name));
+			if (!server.isRegistered(objectName))
+				server.registerMBean(metric, objectName);
+		} catch (JMException e) {
+			LOG.warn("Unable to register metric {} with JMX: {}", name, e.getMessage());
+		}
+	}
+
+	/** Start writing all metrics to the supplied file every <code>intervalSecs</code> seconds.
+	 * Calling this again for the same file has no effect.
+	 */
+	public static synchronized void startFileReporter(final File file, int intervalSecs) {
+		if (!REPORT_FILES.add(file.getAbsoluteFile()))
+			return;
+		if (reporter == null) {
+			reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "alveo-metrics-reporter");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		reporter.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					writeReport(file);
+				} catch (IOException e) {
+					LOG.warn("Unable to write metrics to {}: {}", file, e.getMessage());
+				}
+			}
+		}, intervalSecs, intervalSecs, TimeUnit.SECONDS);
+	}
+
+	/** Write the current value of every metric to the supplied file, replacing its contents.
+	 * Several threads (or components sharing a file) can safely write the same file at once.
+	 */
+	public static void writeReport(File file) throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+		try {
+			PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8")));
+			try {
+				writeReport(out);
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			if (tmp.exists() && !tmp.delete())
+				LOG.warn("Unable to delete temporary metrics file {}", tmp);
+		}
+	}
+
+	/** Write the current value of every metric, one per line */
+	public static synchronized void writeReport(PrintWriter out) {
+		for (Map.Entry<String, Object> entry : METRICS.entrySet()) {
+			Object metric = entry.getValue();
+			if (metric instanceof Meter) {
+				Meter m = (Meter) metric;
+				out.printf("%-36s count=%d rate=%.2f/s%n", entry.getKey(), m.getCount(), m.getMeanRate());
+			} else {
+				Histogram h = (Histogram) metric;
+				out.printf("%-36s count=%d mean=%.1f p50=%d p95=%d p99=%d max=%d (%s)%n", entry.getKey(),
+						h.getCount(), h.getMean(), h.get50thPercentile(), h.get95thPercentile(),
+						h.get99thPercentile(), h.getMax(), h.getUnit());
+			}
+		}
+	}
+}
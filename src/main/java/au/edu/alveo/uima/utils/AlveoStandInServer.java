@@ -0,0 +1,427 @@
+package au.edu.alveo.uima.utils;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A local HTTP server which stands in for an Alveo server, for benchmarking and profiling
+ * pipelines without depending on a live server.
+ *
+ * In recording mode, every request (REST or SPARQL) is forwarded to the real server and the
+ * response is stored in an archive directory before being returned. In replay mode, responses
+ * are served from the archive only, with an optional injected latency, so that repeated runs see
+ * identical data and timing. Components are pointed at the stand-in simply by using
+ * {@link #getBaseUrl()} as their Alveo base URL.
+ *
+ * Occurrences of the real server's base URL in textual responses (such as item URIs in an item list)
+ * are rewritten to refer to the stand-in, so that requests derived from earlier responses are
+ * also routed through it. Requests are matched on method, path, query and body; if a request with
+ * a body (such as an annotation upload) has no exact match, the responses recorded for the same
+ * method, path and query are replayed instead.
+ *
+ * Every response to a repeated request is recorded, and the responses are replayed in the order they
+ * were recorded, so a request which is made again after something has changed on the server (such as
+ * fetching an item after annotations have been uploaded to it) sees the same state as it did when
+ * recording. Once the recorded responses for a request run out, the last of them is repeated.
+ * Recordings should be made into an empty archive directory.
+ */
+public class AlveoStandInServer {
+	private static final Logger LOG = LoggerFactory.getLogger(AlveoStandInServer.class);
+	private static final int FORMAT_VERSION = 1;
+	private static final String BASE_URL_PLACEHOLDER = "{{alveo-base-url}}";
+	private static final String[] UNFORWARDED_HEADERS = new String[] {
+			"Host", "Content-Length", "Connection", "Accept-Encoding", "Transfer-Encoding"
+	};
+
+	private final File archiveDir;
+	private final String upstreamBaseUrl;
+	private final long latencyMillis;
+	private final boolean replayRecordedLatency;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	/** The number of responses recorded or replayed so far for each archive key */
+	private final Map<String, Integer> sequence = new HashMap<String, Integer>();
+
+	/**
+	 * @param archiveDir The directory where responses are recorded or replayed from
+	 * @param upstreamBaseUrl The base URL of the real Alveo server to record from, or <code>null</code> to replay
+	 * @param port The local port to listen on, or 0 to choose a free port
+	 * @param latencyMillis A fixed delay added to each replayed response
+	 * @param replayRecordedLatency If true, each replayed response is also delayed by the time
+	 *                              the real server took to produce it when it was recorded
+	 * @param numThreads The number of threads used to serve requests
+	 */
+	public AlveoStandInServer(File archiveDir, String upstreamBaseUrl, int port, long latencyMillis,
+			boolean replayRecordedLatency, int numThreads) throws IOException {
+		this.archiveDir = archiveDir;
+		this.upstreamBaseUrl = upstreamBaseUrl == null ? null : stripTrailingSlash(upstreamBaseUrl);
+		this.latencyMillis = latencyMillis;
+		this.replayRecordedLatency = replayRecordedLatency;
+		if (isRecording() && !archiveDir.isDirectory() && !archiveDir.mkdirs())
+			throw new IOException("Unable to create archive directory " + archiveDir);
+		if (!isRecording() && !archiveDir.isDirectory())
+			throw new IOException("Archive directory " + archiveDir + " does not exist");
+		server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		server.createContext("/", new Handler());
+		executor = Executors.newFixedThreadPool(numThreads);
+		server.setExecutor(executor);
+	}
+
+	public boolean isRecording() {
+		return upstreamBaseUrl != null;
+	}
+
+	public void start() {
+		server.start();
+		LOG.info("{} Alveo stand-in server at {} using archive {}",
+				isRecording() ? "Recording" : "Replaying", getBaseUrl(), archiveDir);
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	/** The base URL which components should use in place of the real Alveo server URL */
+	public String getBaseUrl() {
+		return "http://localhost:" + server.getAddress().getPort();
+	}
+
+	private class Handler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				byte[] requestBody = readFully(exchange.getRequestBody());
+				String method = exchange.getRequestMethod();
+				String pathAndQuery = exchange.getRequestURI().getRawPath();
+				if (exchange.getRequestURI().getRawQuery() != null)
+					pathAndQuery += "?" + exchange.getRequestURI().getRawQuery();
+				RecordedResponse response;
+				if (isRecording()) {
+					response = forward(method, pathAndQuery, exchange.getRequestHeaders(), requestBody);
+					record(method, pathAndQuery, requestBody, response);
+				} else {
+					response = replay(method, pathAndQuery, requestBody);
+				}
+				sendResponse(exchange, response);
+			} catch (IOException e) {
+				LOG.error("Failed to handle request for " + exchange.getRequestURI(), e);
+				// if the response has already started, closing the exchange is all that can be done
+				if (exchange.getResponseCode() == -1)
+					exchange.sendResponseHeaders(502, -1);
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	private RecordedResponse forward(String method, String pathAndQuery, Headers headers, byte[] body)
+			throws IOException {
+		long start = System.nanoTime();
+		HttpURLConnection conn = (HttpURLConnection) new URL(upstreamBaseUrl + pathAndQuery).openConnection();
+		conn.setRequestMethod(method);
+		conn.setInstanceFollowRedirects(false);
+		for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+			if (isForwarded(header.getKey())) {
+				for (String value : header.getValue())
+					conn.addRequestProperty(header.getKey(), value);
+			}
+		}
+		if (body.length > 0) {
+			conn.setDoOutput(true);
+			OutputStream out = conn.getOutputStream();
+			try {
+				out.write(body);
+			} finally {
+				out.close();
+			}
+		}
+		int status = conn.getResponseCode();
+		InputStream in = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+		byte[] responseBody = in == null ? new byte[0] : readFully(in);
+		String contentType = conn.getContentType();
+		String location = conn.getHeaderField("Location");
+		long elapsedMicros = (System.nanoTime() - start) / 1000;
+		if (isTextual(contentType))
+			responseBody = replace(responseBody, upstreamBaseUrl, BASE_URL_PLACEHOLDER);
+		if (location != null)
+			location = location.replace(upstreamBaseUrl, BASE_URL_PLACEHOLDER);
+		return new RecordedResponse(status, contentType, location, elapsedMicros, responseBody);
+	}
+
+	private RecordedResponse replay(String method, String pathAndQuery, byte[] body) throws IOException {
+		File file = nextReplayFile(archiveKey(method, pathAndQuery, body));
+		if (file == null)
+			file = nextReplayFile(archiveKey(method, pathAndQuery, null));
+		if (file == null) {
+			LOG.warn("No recorded response for {} {}", method, pathAndQuery);
+			return new RecordedResponse(404, "text/plain", null, 0,
+					("No recorded response for " + method + " " + pathAndQuery).getBytes("UTF-8"));
+		}
+		RecordedResponse response = RecordedResponse.read(file);
+		long delayMillis = latencyMillis + (replayRecordedLatency ? response.elapsedMicros / 1000 : 0);
+		if (delayMillis > 0) {
+			try {
+				Thread.sleep(delayMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return response;
+	}
+
+	private synchronized void record(String method, String pathAndQuery, byte[] body, RecordedResponse response)
+			throws IOException {
+		String key = archiveKey(method, pathAndQuery, body);
+		response.write(archiveFile(key, nextSequence(key)));
+		if (body.length > 0) { // fallback for replaying requests with bodies which weren't recorded
+			key = archiveKey(method, pathAndQuery, null);
+			response.write(archiveFile(key, nextSequence(key)));
+		}
+	}
+
+	/** Get the next recorded response to replay for a key, repeating the last one once they have all
+	 * been replayed, or <code>null</code> if there are none */
+	private synchronized File nextReplayFile(String key) {
+		Integer replayed = sequence.get(key);
+		int next = replayed == null ? 0 : replayed;
+		File file = archiveFile(key, next);
+		if (file.exists()) {
+			sequence.put(key, next + 1);
+			return file;
+		}
+		return next > 0 ? archiveFile(key, next - 1) : null;
+	}
+
+	private synchronized int nextSequence(String key) {
+		Integer recorded = sequence.get(key);
+		int next = recorded == null ? 0 : recorded;
+		sequence.put(key, next + 1);
+		return next;
+	}
+
+	private void sendResponse(HttpExchange exchange, RecordedResponse response) throws IOException {
+		byte[] body = response.body;
+		String location = response.location;
+		if (isTextual(response.contentType))
+			body = replace(body, BASE_URL_PLACEHOLDER, getBaseUrl());
+		if (location != null)
+			location = location.replace(BASE_URL_PLACEHOLDER, getBaseUrl());
+		if (response.contentType != null)
+			exchange.getResponseHeaders().set("Content-Type", response.contentType);
+		if (location != null)
+			exchange.getResponseHeaders().set("Location", location);
+		exchange.sendResponseHeaders(response.status, body.length == 0 ? -1 : body.length);
+		if (body.length > 0) {
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		}
+	}
+
+	/** The file for a recorded response. The first response for a key has no sequence number in its
+	 * name, so archives recorded before responses were sequenced can still be replayed */
+	private File archiveFile(String key, int index) {
+		return new File(archiveDir, key + (index > 0 ? "." + index : "") + ".resp");
+	}
+
+	private static String archiveKey(String method, String pathAndQuery, byte[] body) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(method.getBytes("UTF-8"));
+			digest.update((byte) 0);
+			digest.update(pathAndQuery.getBytes("UTF-8"));
+			if (body != null) {
+				digest.update((byte) 0);
+				digest.update(body);
+			}
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest.digest())
+				sb.append(String.format("%02x", b));
+			sb.append(body == null ? ".any" : "");
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static boolean isForwarded(String headerName) {
+		for (String h : UNFORWARDED_HEADERS) {
+			if (h.equalsIgnoreCase(headerName))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isTextual(String contentType) {
+		if (contentType == null)
+			return false;
+		String ct = contentType.toLowerCase();
+		return ct.startsWith("text/") || ct.contains("json") || ct.contains("xml") || ct.contains("sparql");
+	}
+
+	private static byte[] replace(byte[] body, String target, String replacement) throws UnsupportedEncodingException {
+		String text = new String(body, "UTF-8");
+		if (!text.contains(target))
+			return body;
+		return text.replace(target, replacement).getBytes("UTF-8");
+	}
+
+	private static String stripTrailingSlash(String url) {
+		return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		try {
+			while ((n = in.read(buf)) != -1)
+				out.write(buf, 0, n);
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+	private static class RecordedResponse {
+		private final int status;
+		private final String contentType;
+		private final String location;
+		private final long elapsedMicros;
+		private final byte[] body;
+
+		RecordedResponse(int status, String contentType, String location, long elapsedMicros, byte[] body) {
+			this.status = status;
+			this.contentType = contentType;
+			this.location = location;
+			this.elapsedMicros = elapsedMicros;
+			this.body = body;
+		}
+
+		void write(File file) throws IOException {
+			File tmp = new File(file.getPath() + ".tmp");
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(FORMAT_VERSION);
+				out.writeInt(status);
+				out.writeUTF(contentType == null ? "" : contentType);
+				out.writeUTF(location == null ? "" : location);
+				out.writeLong(elapsedMicros);
+				out.writeInt(body.length);
+				out.write(body);
+			} finally {
+				out.close();
+			}
+			if (file.exists() && !file.delete())
+				throw new IOException("Unable to replace " + file);
+			if (!tmp.renameTo(file))
+				throw new IOException("Unable to move recorded response into place at " + file);
+		}
+
+		static RecordedResponse read(File file) throws IOException {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				int version = in.readInt();
+				if (version != FORMAT_VERSION)
+					throw new IOException("Unsupported archive format version " + version + " in " + file);
+				int status = in.readInt();
+				String contentType = in.readUTF();
+				String location = in.readUTF();
+				long elapsedMicros = in.readLong();
+				byte[] body = new byte[in.readInt()];
+				in.readFully(body);
+				return new RecordedResponse(status, contentType.isEmpty() ? null : contentType,
+						location.isEmpty() ? null : location, elapsedMicros, body);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	protected static class CLParams {
+
+		@Parameter(names = {"-a", "--archive-dir"}, required = true,
+				description = "Directory where responses are recorded to or replayed from")
+		private String archiveDir;
+
+		@Parameter(names = {"-r", "--record-from"}, required = false,
+				description = "Base URL of a real Alveo server to record responses from. If not set, " +
+						"responses are replayed from the archive")
+		private String upstreamUrl = null;
+
+		@Parameter(names = {"-p", "--port"}, required = false, description = "Local port to listen on")
+		private int port = 8099;
+
+		@Parameter(names = {"-l", "--latency-ms"}, required = false,
+				description = "Fixed latency in milliseconds added to each replayed response")
+		private long latencyMillis = 0;
+
+		@Parameter(names = {"--recorded-latency"}, required = false,
+				description = "Also delay each replayed response by the time the real server took to produce it")
+		private boolean recordedLatency = false;
+
+		@Parameter(names = {"-t", "--threads"}, required = false, description = "Number of request-handling threads")
+		private int threads = 16;
+
+		@Parameter(names = { "--help", "-h", "-?" }, help = true, description = "Display this help text")
+		private boolean help;
+	}
+
+	private static String usage = String.format("Run a local stand-in for an Alveo server. With " +
+			"--record-from, requests are forwarded to the real server and the responses are stored in " +
+			"the archive directory; otherwise responses are replayed from the archive. In either case, " +
+			"use the printed base URL in place of the real server URL when configuring pipeline components.");
+
+	public static void main(String[] args) throws Exception {
+		CLParams params = new CLParams();
+		JCommander jcom = new JCommander(params, args);
+		jcom.setProgramName(AlveoStandInServer.class.getName());
+		if (params.help) {
+			System.err.println(usage);
+			jcom.usage();
+			return;
+		}
+		final AlveoStandInServer server = new AlveoStandInServer(new File(params.archiveDir), params.upstreamUrl,
+				params.port, params.latencyMillis, params.recordedLatency, params.threads);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				server.stop();
+			}
+		});
+		server.start();
+		System.out.println(server.getBaseUrl());
+	}
+}
@@ -0,0 +1,143 @@
+package au.edu.alveo.uima.utils;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import au.edu.alveo.uima.AnnotationKeys;
+import au.edu.alveo.uima.UploadJournal;
+import au.edu.alveo.client.RestClient;
+import au.edu.alveo.client.TextRestAnnotation;
+import au.edu.alveo.client.UnsupportedLDSchemaException;
+import au.edu.alveo.client.entity.EntityNotFoundException;
+import au.edu.alveo.client.entity.InvalidAnnotationException;
+import au.edu.alveo.client.entity.Item;
+import au.edu.alveo.client.entity.UnauthorizedAPIKeyException;
+import au.edu.alveo.client.entity.UploadIntegrityException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Uploads the annotations which were recorded in the upload journals of
+ * {@link au.edu.alveo.uima.ItemAnnotationUploader} but never committed, because the pipeline
+ * stopped before the server accepted them.
+ *
+ * Some of those annotations may have reached the server anyway, so each item's current
+ * annotations are retrieved first, and only annotations which are not already present are sent.
+ */
+public class ReplayUploadJournal {
+	private static final Logger LOG = LoggerFactory.getLogger(ReplayUploadJournal.class);
+
+	protected static class CLParams {
+
+		@Parameter(names = {"-u", "--server-url"}, required = true, description = "Base URL of Alveo server")
+		private String serverUrl;
+
+		@Parameter(names = {"-k", "--api-key"}, required = true,
+				description = "API key for for your user account, obtainable from the web interface")
+		private String apiKey;
+
+		@Parameter(names = { "--help", "-h", "-?" }, help = true, description = "Display this help text")
+		private boolean help;
+
+		@Parameter(names = { "-d", "--dir"}, required = true,
+				description = "Journal directory, as supplied to the uploader's uploadJournalDir parameter")
+		private String dirName;
+
+	}
+
+	private static String usage = String.format("Replay the uploads recorded in the journal directory of " +
+			"an annotation uploader which did not complete. Journals are deleted once all of their uploads " +
+			"have succeeded, so the tool can be run again to retry any which fail.");
+
+	private final RestClient client;
+	private int failures = 0;
+
+	public ReplayUploadJournal(RestClient client) {
+		this.client = client;
+	}
+
+	public static void main(String[] args) throws Exception {
+		CLParams params = new CLParams();
+		JCommander jcom = new JCommander(params, args);
+		jcom.setProgramName(ReplayUploadJournal.class.getName());
+		if (params.help) {
+			System.err.println(usage);
+			jcom.usage();
+			return;
+		}
+		ReplayUploadJournal replayer = new ReplayUploadJournal(new RestClient(params.serverUrl, params.apiKey));
+		int failures = replayer.replayDirectory(new File(params.dirName));
+		if (failures > 0) {
+			System.err.println(failures + " chunk(s) could not be uploaded; see the log for details");
+			System.exit(1);
+		}
+	}
+
+	/** Replay every journal in a directory, returning the number of chunks which could not be uploaded */
+	public int replayDirectory(File dir) throws Exception {
+		failures = 0;
+		for (File file : UploadJournal.listJournals(dir)) {
+			UploadJournal journal = UploadJournal.open(file);
+			try {
+				replay(journal);
+			} finally {
+				journal.close();
+			}
+		}
+		return failures;
+	}
+
+	private void replay(UploadJournal journal) throws Exception {
+		List<UploadJournal.Chunk> chunks = journal.getUncommitted();
+		LOG.info("Replaying {} uncommitted chunks from {}", chunks.size(), journal.getFile());
+		Map<String, Item> items = new HashMap<String, Item>();
+		Map<String, Set<String>> existing = new HashMap<String, Set<String>>();
+		for (UploadJournal.Chunk chunk : chunks) {
+			String itemUri = chunk.getItemUri();
+			try {
+				Item item = items.get(itemUri);
+				if (item == null) {
+					item = client.getItemByUri(itemUri);
+					items.put(itemUri, item);
+					existing.put(itemUri, AnnotationKeys.keysOf(item.getTextAnnotations()));
+				}
+				Set<String> onServer = existing.get(itemUri);
+				Set<String> chunkKeys = new HashSet<String>();
+				List<TextRestAnnotation> missing = new ArrayList<TextRestAnnotation>();
+				for (TextRestAnnotation ann : chunk.getAnnotations()) {
+					String key = AnnotationKeys.keyOf(ann);
+					if (!onServer.contains(key) && chunkKeys.add(key))
+						missing.add(ann);
+				}
+				if (!missing.isEmpty())
+					item.storeNewAnnotations(missing);
+				// only once they are stored, or a later chunk with the same annotations would skip them
+				onServer.addAll(chunkKeys);
+				journal.commit(chunk.getId());
+			} catch (UnauthorizedAPIKeyException e) {
+				throw e; // nothing else will work either
+			} catch (UnsupportedLDSchemaException e) {
+				failed(chunk, e);
+			} catch (EntityNotFoundException e) {
+				failed(chunk, e);
+			} catch (UploadIntegrityException e) {
+				failed(chunk, e);
+			} catch (InvalidAnnotationException e) {
+				failed(chunk, e);
+			}
+		}
+	}
+
+	private void failed(UploadJournal.Chunk chunk, Exception e) {
+		LOG.error("Unable to replay {} annotations for {}: {}",
+				new Object[] {chunk.getAnnotations().size(), chunk.getItemUri(), e.toString()});
+		failures++;
+	}
+}
@@ -0,0 +1,103 @@
+package au.edu.alveo.uima;
+
+import au.edu.alveo.client.TextRestAnnotation;
+import au.edu.alveo.uima.conversions.UIMAToAlveoFieldConverter;
+import junit.framework.TestCase;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.resource.metadata.impl.TypeSystemDescription_impl;
+import org.apache.uima.util.CasCreationUtils;
+
+public class AnnotationDiffTest extends TestCase {
+	private static final String TYPE_URI = "http://example.org/types/span";
+	private static final String TEXT = "the cat sat on the mat";
+
+	private CAS cas;
+
+	@Override
+	protected void setUp() throws Exception {
+		cas = CasCreationUtils.createCas(new TypeSystemDescription_impl(), null, null);
+		cas.setDocumentText(TEXT);
+	}
+
+	public void testOutOfOrderLookups() throws Exception {
+		AnnotationDiff diff = new AnnotationDiff(new CoveredTextConverter());
+		// added out of index order, so they must be sorted before comparing
+		diff.addOriginal(ann(15, 18));
+		diff.addOriginal(ann(0, 3));
+		diff.addOriginal(ann(8, 11));
+		diff.addOriginal(ann(0, 7));
+		diff.addOriginal(ann(19, 22));
+
+		// descending order, so every lookup is before the previous one
+		assertNull(diff.findNew(ann(19, 22), 0));
+		assertNotNull(diff.findNew(ann(12, 14), 0));
+		assertNull(diff.findNew(ann(8, 11), 0));
+		assertNotNull(diff.findNew(ann(4, 7), 0));
+		assertNull(diff.findNew(ann(0, 3), 0));
+		assertNull(diff.findNew(ann(0, 7), 0));
+		// and jumping forward again after going backwards
+		assertNull(diff.findNew(ann(15, 18), 0));
+		assertNotNull(diff.findNew(ann(15, 22), 0));
+		assertNull(diff.findNew(ann(0, 3), 0));
+	}
+
+	public void testRepeatedLookups() throws Exception {
+		AnnotationDiff diff = new AnnotationDiff(new CoveredTextConverter());
+		diff.addOriginal(ann(4, 7));
+		diff.addOriginal(ann(8, 11));
+		for (int i = 0; i < 3; i++) {
+			assertNull(diff.findNew(ann(8, 11), 0));
+			assertNull(diff.findNew(ann(4, 7), 0));
+			assertNotNull(diff.findNew(ann(0, 3), 0));
+		}
+	}
+
+	public void testNewAnnotationIsOffset() throws Exception {
+		AnnotationDiff diff = new AnnotationDiff(new CoveredTextConverter());
+		diff.addOriginal(ann(0, 3));
+		TextRestAnnotation found = diff.findNew(ann(4, 7), 100);
+		assertNotNull(found);
+		assertEquals(TYPE_URI, found.getType());
+		assertEquals("cat", found.getLabel());
+		assertEquals(104, found.getStartOffset());
+		assertEquals(107, found.getEndOffset());
+	}
+
+	private AnnotationFS ann(int begin, int end) {
+		return cas.createAnnotation(cas.getAnnotationType(), begin, end);
+	}
+
+	/** Uses a single type URI, with the covered text as the label */
+	private static class CoveredTextConverter implements UIMAToAlveoFieldConverter {
+		@Override
+		public void setTypeSystem(TypeSystem ts) {
+		}
+
+		@Override
+		public TextRestAnnotation convertToAlveo(AnnotationFS ann) {
+			return new TextRestAnnotation(getAlveoType(ann), getAlveoLabel(ann), ann.getBegin(), ann.getEnd());
+		}
+
+		@Override
+		public String getAlveoType(AnnotationFS ann) {
+			return TYPE_URI;
+		}
+
+		@Override
+		public String getAlveoLabel(AnnotationFS ann) {
+			return ann.getCoveredText();
+		}
+
+		@Override
+		public String getAlveoTypeUriForTypeName(String uimaTypeName) {
+			return TYPE_URI;
+		}
+
+		@Override
+		public boolean handlesTypeName(String uimaTypeName) {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package au.edu.alveo.uima;
+
+import junit.framework.TestCase;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class UploadFingerprintIndexTest extends TestCase {
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("upload-index-test", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdir());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files)
+				f.delete();
+		}
+		dir.delete();
+	}
+
+	public void testAddedFingerprintsAreMergedOnReopen() throws IOException {
+		UploadFingerprintIndex index = UploadFingerprintIndex.open(dir, 10);
+		index.addAll(new long[] {30, 10, 20});
+		assertTrue(index.containsAll(new long[] {10, 20, 30}));
+		assertFalse(index.containsAll(new long[] {10, 40}));
+		index.close();
+
+		index = UploadFingerprintIndex.open(dir, 10);
+		assertEquals(0, logFile().length());
+		assertEquals(3 * 8, sortedFile().length());
+		assertTrue(index.containsAll(new long[] {10, 20, 30}));
+		assertFalse(index.containsAll(new long[] {40}));
+		index.addAll(new long[] {40, -5});
+		index.close();
+
+		index = UploadFingerprintIndex.open(dir, 10);
+		assertEquals(5 * 8, sortedFile().length());
+		assertTrue(index.containsAll(new long[] {-5, 10, 20, 30, 40}));
+		index.close();
+	}
+
+	public void testKnownFingerprintsAreNotLoggedAgain() throws IOException {
+		UploadFingerprintIndex index = UploadFingerprintIndex.open(dir, 10);
+		index.addAll(new long[] {1, 2, 2, 3});
+		assertEquals(3 * 8, logFile().length());
+		index.close();
+
+		index = UploadFingerprintIndex.open(dir, 10);
+		index.addAll(new long[] {2, 3, 4});
+		assertEquals("only the fingerprint not in the sorted file is logged", 8, logFile().length());
+		index.close();
+	}
+
+	public void testMergeRemovesDuplicates() throws IOException {
+		UploadFingerprintIndex index = UploadFingerprintIndex.open(dir, 10);
+		index.addAll(new long[] {1, 2, 3});
+		index.close();
+		UploadFingerprintIndex.open(dir, 10).close(); // compact into the sorted file
+
+		// a log left behind by a crash after the merged file replaced the old one, with repeated
+		// entries and a partly-written final entry
+		DataOutputStream log = new DataOutputStream(new FileOutputStream(logFile()));
+		try {
+			log.writeLong(3);
+			log.writeLong(5);
+			log.writeLong(1);
+			log.writeLong(5);
+			log.write(new byte[] {0, 0, 0});
+		} finally {
+			log.close();
+		}
+
+		index = UploadFingerprintIndex.open(dir, 10);
+		assertEquals(0, logFile().length());
+		assertEquals(4 * 8, sortedFile().length());
+		assertTrue(index.containsAll(new long[] {1, 2, 3, 5}));
+		assertFalse(index.containsAll(new long[] {4}));
+		index.close();
+	}
+
+	private File logFile() {
+		return new File(dir, "fingerprints.log");
+	}
+
+	private File sortedFile() {
+		return new File(dir, "fingerprints.sorted");
+	}
+}
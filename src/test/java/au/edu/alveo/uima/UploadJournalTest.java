@@ -0,0 +1,137 @@
+package au.edu.alveo.uima;
+
+import au.edu.alveo.client.TextRestAnnotation;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+public class UploadJournalTest extends TestCase {
+	private static final String ITEM_1 = "http://example.org/catalog/corpus/item1";
+	private static final String ITEM_2 = "http://example.org/catalog/corpus/item2";
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("upload-journal-test", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdir());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : UploadJournal.listJournals(dir))
+			f.delete();
+		dir.delete();
+	}
+
+	public void testUncommittedChunksAreReadBack() throws IOException {
+		List<TextRestAnnotation> first = annotations(
+				ann("http://example.org/types/word", "the", 0, 3),
+				ann("http://example.org/types/word", "cat", 4, 7),
+				ann("http://example.org/types/phrase", null, 0, 7));
+		List<TextRestAnnotation> second = annotations(
+				ann("http://example.org/types/word", "sat", 12, 15),
+				ann("http://example.org/types/word", "on", 8, 10));
+		UploadJournal journal = UploadJournal.create(dir);
+		File file = journal.getFile();
+		int firstId = journal.append(ITEM_1, first);
+		int secondId = journal.append(ITEM_2, second);
+		journal.commit(firstId);
+		journal.close();
+		assertTrue("a journal with uncommitted chunks is kept", file.exists());
+
+		journal = UploadJournal.open(file);
+		List<UploadJournal.Chunk> uncommitted = journal.getUncommitted();
+		assertEquals(1, uncommitted.size());
+		assertEquals(secondId, uncommitted.get(0).getId());
+		assertEquals(ITEM_2, uncommitted.get(0).getItemUri());
+		assertAnnotationsEqual(second, uncommitted.get(0).getAnnotations());
+
+		journal.commit(secondId);
+		journal.close();
+		assertFalse("a journal with nothing uncommitted is deleted", file.exists());
+	}
+
+	public void testTornRecordIsTrimmed() throws IOException {
+		List<TextRestAnnotation> first = annotations(ann("http://example.org/types/word", "the", 0, 3));
+		List<TextRestAnnotation> second = annotations(ann("http://example.org/types/word", "cat", 4, 7));
+		List<TextRestAnnotation> third = annotations(ann("http://example.org/types/word", "sat", 8, 11));
+		UploadJournal journal = UploadJournal.create(dir);
+		File file = journal.getFile();
+		int firstId = journal.append(ITEM_1, first);
+		journal.append(ITEM_2, second);
+		journal.close();
+
+		// simulate the process dying part-way through writing the second record
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(raf.length() - 5);
+		} finally {
+			raf.close();
+		}
+
+		journal = UploadJournal.open(file);
+		List<UploadJournal.Chunk> uncommitted = journal.getUncommitted();
+		assertEquals(1, uncommitted.size());
+		assertEquals(firstId, uncommitted.get(0).getId());
+		assertAnnotationsEqual(first, uncommitted.get(0).getAnnotations());
+		// records written after the torn one was dropped must be readable
+		int thirdId = journal.append(ITEM_2, third);
+		journal.close();
+
+		journal = UploadJournal.open(file);
+		uncommitted = journal.getUncommitted();
+		assertEquals(2, uncommitted.size());
+		assertEquals(firstId, uncommitted.get(0).getId());
+		assertEquals(thirdId, uncommitted.get(1).getId());
+		assertAnnotationsEqual(third, uncommitted.get(1).getAnnotations());
+		journal.commit(firstId);
+		journal.commit(thirdId);
+		journal.close();
+		assertFalse(file.exists());
+	}
+
+	public void testLabelsLongerThan64KB() throws IOException {
+		StringBuilder transcription = new StringBuilder();
+		while (transcription.length() < 100000)
+			transcription.append("the cat sat on the mat ");
+		List<TextRestAnnotation> anns = annotations(
+				ann("http://example.org/types/transcription", transcription.toString(), 0, transcription.length()));
+		UploadJournal journal = UploadJournal.create(dir);
+		File file = journal.getFile();
+		journal.append(ITEM_1, anns);
+		journal.close();
+
+		journal = UploadJournal.open(file);
+		assertEquals(1, journal.getUncommitted().size());
+		assertAnnotationsEqual(anns, journal.getUncommitted().get(0).getAnnotations());
+		journal.commit(journal.getUncommitted().get(0).getId());
+		journal.close();
+	}
+
+	private static TextRestAnnotation ann(String type, String label, int start, int end) {
+		return new TextRestAnnotation(type, label, start, end);
+	}
+
+	private static List<TextRestAnnotation> annotations(TextRestAnnotation... anns) {
+		List<TextRestAnnotation> result = new ArrayList<TextRestAnnotation>(anns.length);
+		for (TextRestAnnotation ann : anns)
+			result.add(ann);
+		return result;
+	}
+
+	private static void assertAnnotationsEqual(List<TextRestAnnotation> expected, List<TextRestAnnotation> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getType(), actual.get(i).getType());
+			assertEquals(expected.get(i).getLabel(), actual.get(i).getLabel());
+			assertEquals(expected.get(i).getStartOffset(), actual.get(i).getStartOffset());
+			assertEquals(expected.get(i).getEndOffset(), actual.get(i).getEndOffset());
+		}
+	}
+}